@@ -1,3 +1,4 @@
+import { currentPluginId } from "./context";
 import { JavaError } from "./errors";
 import { IMessage, Messages } from "./messages";
 import { MessageTypes } from "./messageTypes";
@@ -55,133 +56,195 @@ export function init() {
     }).start();
 }
 
-let lastSend: Promise<void> = Promise.resolve();
-
-function send(...buffers: Buffer[]): Promise<void> {
-    return lastSend = lastSend.then(() => new Promise<any | (() => Promise<any>)>((s) => {
-        // tslint:disable-next-line:no-console
-        console.warn("node-spigot-bridge: Sending data...");
-        // tslint:disable-next-line:prefer-for-of
-        for (let i = 0; i < buffers.length; i++) {
-            if (!process.stdout.write(buffers[i])) {
-                process.stdout.once("drain", () => {
-                    if (i + 1 === buffers.length) {
-                        s();
-                    } else {
-                        const f: () => Promise<void> = () => send(...buffers.slice(i + 1));
-                        s(f);
-                    }
-                });
-                return;
-            }
-        }
-        s();
-    })).then((f?: () => Promise<void>) => {
-        if (f) {
-            return f();
-        }
-        return;
+/** The plugin which the java plugin accounts frames to */
+let taggedPluginId = 0;
+
+/**
+ * Frames sent during the same turn of the event loop, which are written together.
+ */
+interface IBatch {
+    readonly promise: Promise<void>;
+    resolve: () => void;
+    reject: (e: Error) => void;
+}
+
+/**
+ * Frames are encoded into `out`, while `spare` may still be written to stdout.
+ * The buffers are swapped on each write and kept between writes.
+ */
+let out = Buffer.allocUnsafe(0x10000);
+let spare = Buffer.allocUnsafe(0x10000);
+let outLength = 0;
+let batch: IBatch | null = null;
+let writing = false;
+let flushScheduled = false;
+
+function newBatch(): IBatch {
+    const b: any = {};
+    b.promise = new Promise<void>((s, r) => {
+        b.resolve = s;
+        b.reject = r;
     });
+    return b as IBatch;
 }
 
-// tslint:disable-next-line:max-line-length
-export function sendAsync<R extends Buffer | number | undefined>(type: MessageTypes, data?: Buffer | number): Promise<R>;
-// tslint:disable-next-line:max-line-length
-export function sendAsync<R extends Buffer | number | undefined>(type: MessageTypes, shortData: number, bufferData: Buffer): Promise<R>;
-// tslint:disable-next-line:max-line-length
-export function sendAsync<R extends Buffer | number | undefined>(type: MessageTypes, data?: Buffer | number, bufferData?: Buffer): Promise<R> {
-    const idx = syncIndex;
-    // tslint:disable-next-line:no-bitwise
-    syncIndex = (syncIndex + 1) & 0x7FFF;
+/**
+ * @returns {number} the number of bytes of a frame
+ */
+function frameLength(shortData?: number, bufferData?: Buffer, syncId?: number): number {
+    return 1 + (shortData === undefined ? 0 : 2)
+        + (bufferData === undefined ? 0 : 2 + bufferData.length)
+        + (syncId === undefined ? 0 : 2);
+}
 
-    const bs: Buffer[] = [Buffer.alloc(3)];
-    if (typeof data === "number") {
-        // tslint:disable-next-line:no-bitwise
-        bs[0][0] = type | 0xA0;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][1] = data >> 8;
+/**
+ * Encodes a frame into a buffer.
+ * @returns {number} the offset after the frame
+ */
+// tslint:disable-next-line:max-line-length
+function encodeFrame(b: Buffer, off: number, type: MessageTypes, shortData?: number, bufferData?: Buffer, syncId?: number): number {
+    let t: number = type;
+    if (shortData !== undefined) {
         // tslint:disable-next-line:no-bitwise
-        bs[0][2] = data & 0xFF;
-
-        if (typeof bufferData === "object") {
-            // tslint:disable-next-line:no-bitwise
-            bs[0][0] = type | 0xE0;
-            bs.push(Buffer.from([
-                // tslint:disable-next-line:no-bitwise
-                bufferData.length >> 8,
-                // tslint:disable-next-line:no-bitwise
-                bufferData.length & 0xFF,
-            ]));
-            bs.push(bufferData);
-        }
-
+        t |= 0x20;
+    }
+    if (bufferData !== undefined) {
         // tslint:disable-next-line:no-bitwise
-        bs.push(Buffer.from([idx >> 8, idx & 0xFF]));
-    } else if (typeof data === "object") {
+        t |= 0x40;
+    }
+    if (syncId !== undefined) {
         // tslint:disable-next-line:no-bitwise
-        bs[0][0] = type | 0xC0;
+        t |= 0x80;
+    }
+    b[off++] = t;
+    if (shortData !== undefined) {
         // tslint:disable-next-line:no-bitwise
-        bs[0][1] = data.length >> 8;
+        b[off++] = shortData >> 8;
         // tslint:disable-next-line:no-bitwise
-        bs[0][2] = data.length & 0xFF;
-        bs.push(data);
+        b[off++] = shortData & 0xFF;
+    }
+    if (bufferData !== undefined) {
         // tslint:disable-next-line:no-bitwise
-        bs.push(Buffer.from([idx >> 8, idx & 0xFF]));
-    } else {
+        b[off++] = bufferData.length >> 8;
         // tslint:disable-next-line:no-bitwise
-        bs[0][0] = type | 0x80;
+        b[off++] = bufferData.length & 0xFF;
+        off += bufferData.copy(b, off);
+    }
+    if (syncId !== undefined) {
         // tslint:disable-next-line:no-bitwise
-        bs[0][1] = idx >> 8;
+        b[off++] = syncId >> 8;
         // tslint:disable-next-line:no-bitwise
-        bs[0][2] = idx & 0xFF;
+        b[off++] = syncId & 0xFF;
+    }
+    return off;
+}
+
+/**
+ * Appends a frame to the output buffer.
+ */
+function append(type: MessageTypes, shortData?: number, bufferData?: Buffer, syncId?: number) {
+    const l = frameLength(shortData, bufferData, syncId);
+    if (outLength + l > out.length) {
+        const b = Buffer.allocUnsafe(Math.max(out.length * 2, outLength + l));
+        out.copy(b, 0, 0, outLength);
+        out = b;
+    }
+    outLength = encodeFrame(out, outLength, type, shortData, bufferData, syncId);
+}
+
+/**
+ * Queues a frame, preceded by a `PLUGIN` frame if it is sent on behalf of another plugin than the previous frame.
+ * The frames queued during a turn of the event loop are written to stdout at once.
+ * @returns {Promise<void>} resolves when the frames of this turn have been written
+ */
+function send(type: MessageTypes, shortData?: number, bufferData?: Buffer, syncId?: number): Promise<void> {
+    const id = currentPluginId();
+    if (id !== taggedPluginId) {
+        taggedPluginId = id;
+        append(MessageTypes.PLUGIN, id);
+    }
+    append(type, shortData, bufferData, syncId);
+    if (!batch) {
+        batch = newBatch();
+    }
+    if (!flushScheduled) {
+        flushScheduled = true;
+        setImmediate(flush);
+    }
+    return batch.promise;
+}
+
+/**
+ * Writes the queued frames, unless a previous write has not completed yet, in which case they are written after it.
+ */
+function flush() {
+    flushScheduled = false;
+    if (writing || outLength === 0) {
+        return;
     }
+    const b = batch as IBatch;
+    const full = out;
+    const data = out.slice(0, outLength);
+    // `spare` is not written to before the next flush, which waits for this write to complete
+    out = spare;
+    spare = full;
+    outLength = 0;
+    batch = null;
+    writing = true;
+    process.stdout.write(data, (err?: Error | null) => {
+        writing = false;
+        if (err) {
+            b.reject(err);
+        } else {
+            b.resolve();
+        }
+        flush();
+    });
+}
+
+// tslint:disable-next-line:max-line-length
+export function sendAsync<R extends Buffer | number | undefined>(type: MessageTypes, data?: Buffer | number): Promise<R>;
+// tslint:disable-next-line:max-line-length
+export function sendAsync<R extends Buffer | number | undefined>(type: MessageTypes, shortData: number, bufferData: Buffer): Promise<R>;
+// tslint:disable-next-line:max-line-length
+export function sendAsync<R extends Buffer | number | undefined>(type: MessageTypes, data?: Buffer | number, bufferData?: Buffer): Promise<R> {
+    const idx = syncIndex;
+    // tslint:disable-next-line:no-bitwise
+    syncIndex = (syncIndex + 1) & 0x7FFF;
 
     return new Promise<R>((s, r) => {
         waitingReply.set(idx, [s, r] as FReply);
-        send(...bs).catch(r);
+        if (typeof data === "number") {
+            send(type, data, bufferData, idx).catch(r);
+        } else {
+            send(type, undefined, data, idx).catch(r);
+        }
     });
 }
 
 export function sendSignal(type: MessageTypes, data?: Buffer | number): Promise<void>;
 export function sendSignal(type: MessageTypes, shortData: number, bufferData: Buffer): Promise<void>;
 export function sendSignal(type: MessageTypes, data?: Buffer | number, bufferData?: Buffer): Promise<void> {
-    const bs: Buffer[] = [];
     if (typeof data === "number") {
-        bs.push(Buffer.from([
-            // tslint:disable-next-line:no-bitwise
-            type | 0x20,
-            // tslint:disable-next-line:no-bitwise
-            data >> 8,
-            // tslint:disable-next-line:no-bitwise
-            data & 0xFF,
-        ]));
-
-        if (typeof bufferData === "object") {
-            // tslint:disable-next-line:no-bitwise
-            bs[0][0] = type | 0x60;
-            bs.push(Buffer.from([
-                // tslint:disable-next-line:no-bitwise
-                bufferData.length >> 8,
-                // tslint:disable-next-line:no-bitwise
-                bufferData.length & 0xFF,
-            ]));
-            bs.push(bufferData);
-        }
-    } else if (typeof data === "object") {
-        bs.push(Buffer.from([
-            // tslint:disable-next-line:no-bitwise
-            type | 0x40,
-            // tslint:disable-next-line:no-bitwise
-            data.length >> 8,
-            // tslint:disable-next-line:no-bitwise
-            data.length & 0xFF,
-        ]));
-        bs.push(data);
-    } else {
-        bs.push(Buffer.from([ type ]));
+        return send(type, data, bufferData);
     }
+    return send(type, undefined, data);
+}
 
-    return send(...bs);
+/**
+ * Encodes a message which does not expect a reply, without sending it.
+ * The result may be sent later, for instance as an operation of a scheduled task.
+ */
+export function encodeSignal(type: MessageTypes, data?: Buffer | number): Buffer;
+export function encodeSignal(type: MessageTypes, shortData: number, bufferData: Buffer): Buffer;
+export function encodeSignal(type: MessageTypes, data?: Buffer | number, bufferData?: Buffer): Buffer {
+    const shortData = typeof data === "number" ? data : undefined;
+    if (shortData === undefined) {
+        bufferData = data as Buffer | undefined;
+    }
+    const b = Buffer.allocUnsafe(frameLength(shortData, bufferData));
+    encodeFrame(b, 0, type, shortData, bufferData);
+    return b;
 }
 
 /**
@@ -190,35 +253,10 @@ export function sendSignal(type: MessageTypes, data?: Buffer | number, bufferDat
  * @param data data to reply with
  */
 export function sendReply(idx: number, data?: Buffer | number): Promise<void> {
-    const bs: Buffer[] = [Buffer.alloc(3)];
     if (typeof data === "number") {
-        // tslint:disable-next-line:no-bitwise
-        bs[0][0] = MessageTypes.REPLY | 0xA0;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][1] = data >> 8;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][2] = data & 0xFF;
-        // tslint:disable-next-line:no-bitwise
-        bs.push(Buffer.from([idx >> 8, idx & 0xFF]));
-    } else if (typeof data === "object") {
-        // tslint:disable-next-line:no-bitwise
-        bs[0][0] = MessageTypes.REPLY | 0xC0;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][1] = data.length >> 8;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][2] = data.length & 0xFF;
-        bs.push(data);
-        // tslint:disable-next-line:no-bitwise
-        bs.push(Buffer.from([idx >> 8, idx & 0xFF]));
-    } else {
-        // tslint:disable-next-line:no-bitwise
-        bs[0][0] = MessageTypes.REPLY | 0x80;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][1] = idx >> 8;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][2] = idx & 0xFF;
+        return send(MessageTypes.REPLY, data, undefined, idx);
     }
-    return send(...bs);
+    return send(MessageTypes.REPLY, undefined, data, idx);
 }
 
 /**
@@ -228,25 +266,5 @@ export function sendReply(idx: number, data?: Buffer | number): Promise<void> {
  */
 export function sendError(idx: number, error?: Error | string): Promise<void> {
     const s = error && error.toString();
-    const bs: Buffer[] = [Buffer.alloc(3)];
-    if (s && s.length) {
-        const data = Buffer.from(s, "utf8");
-        // tslint:disable-next-line:no-bitwise
-        bs[0][0] = MessageTypes.REPLY | 0xC0;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][1] = data.length >> 8;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][2] = data.length & 0xFF;
-        bs.push(data);
-        // tslint:disable-next-line:no-bitwise
-        bs.push(Buffer.from([idx >> 8, idx & 0xFF]));
-    } else {
-        // tslint:disable-next-line:no-bitwise
-        bs[0][0] = MessageTypes.REPLY | 0x80;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][1] = idx >> 8;
-        // tslint:disable-next-line:no-bitwise
-        bs[0][2] = idx & 0xFF;
-    }
-    return send(...bs);
+    return send(MessageTypes.REPLY, undefined, s && s.length ? Buffer.from(s, "utf8") : undefined, idx);
 }
@@ -0,0 +1,66 @@
+import { createHook } from "async_hooks";
+
+/**
+ * Id of the plugin on whose behalf code is currently running, `0` for the bridge itself.
+ */
+let current = 0;
+const stack: number[] = [];
+/** Plugin ids of pending asynchronous resources, such as promises and timers, created on behalf of a plugin */
+const contexts = new Map<number, number>();
+/** Plugin ids by plugin name */
+const ids = new Map<string, number>();
+
+createHook({
+    init(asyncId: number) {
+        if (current !== 0) {
+            contexts.set(asyncId, current);
+        }
+    },
+    before(asyncId: number) {
+        stack.push(current);
+        current = contexts.get(asyncId) || 0;
+    },
+    after() {
+        current = stack.pop() || 0;
+    },
+    destroy(asyncId: number) {
+        contexts.delete(asyncId);
+    },
+}).enable();
+
+/**
+ * @returns {number} id of the plugin on whose behalf code is currently running
+ */
+export function currentPluginId(): number {
+    return current;
+}
+
+/**
+ * Run a function on behalf of a plugin.
+ * Asynchronous work started by the function is also accounted to the plugin.
+ * @param {number} id id of the plugin
+ */
+export function runAsPlugin<T>(id: number, f: () => T): T {
+    const prev = current;
+    current = id;
+    try {
+        return f();
+    } finally {
+        current = prev;
+    }
+}
+
+/**
+ * Set the name of the plugin with an id.
+ */
+export function setPluginName(id: number, name: string) {
+    ids.set(name, id);
+}
+
+/**
+ * @param {string} name name of a plugin
+ * @returns {number} id of the plugin, `0` if there is no plugin with that name
+ */
+export function pluginId(name: string): number {
+    return ids.get(name) || 0;
+}
@@ -0,0 +1,88 @@
+import { sendAsync } from "./communication";
+import { MessageTypes } from "./messageTypes";
+
+const enum QueryKind {
+    RADIUS = 0,
+    BOX = 1,
+    NEAREST = 2,
+}
+
+/** Size of a record in a query reply */
+const RECORD = 28;
+
+/**
+ * The position of a tracked entity.
+ */
+export interface IEntityPosition {
+    /** UUID of the entity */
+    uuid: string;
+    x: number;
+    y: number;
+    z: number;
+}
+
+function query(kind: QueryKind, world: string, values: number[], count?: number): Promise<IEntityPosition[]> {
+    const w = Buffer.from(world, "utf8");
+    const b = Buffer.alloc(2 + w.length + values.length * 8 + (count === undefined ? 0 : 2));
+    b[0] = kind;
+    b[1] = w.length;
+    w.copy(b, 2);
+    let off = 2 + w.length;
+    values.forEach((v, i) => {
+        if (count !== undefined && i === 3) {
+            b.writeUInt16BE(count, off);
+            off += 2;
+        }
+        b.writeDoubleBE(v, off);
+        off += 8;
+    });
+    return sendAsync<Buffer>(MessageTypes.ENTITY_QUERY, b).then((r) => {
+        const ret: IEntityPosition[] = [];
+        for (let i = 0; r && i + RECORD <= r.length; i += RECORD) {
+            const h = r.toString("hex", i, i + 16);
+            ret.push({
+                // tslint:disable-next-line:max-line-length
+                uuid: h.substr(0, 8) + "-" + h.substr(8, 4) + "-" + h.substr(12, 4) + "-" + h.substr(16, 4) + "-" + h.substr(20),
+                x: r.readFloatBE(i + 16),
+                y: r.readFloatBE(i + 20),
+                z: r.readFloatBE(i + 24),
+            });
+        }
+        return ret;
+    });
+}
+
+/**
+ * Spatial queries for the positions of online players.
+ *
+ * Queries made during the same tick are answered together by the server.
+ */
+export class Entities {
+    /**
+     * Find players within a distance of a point.
+     */
+    public static withinRadius(world: string, x: number, y: number, z: number,
+                               radius: number): Promise<IEntityPosition[]> {
+        return query(QueryKind.RADIUS, world, [x, y, z, radius]);
+    }
+
+    /**
+     * Find players inside a box between and including two corners.
+     */
+    public static withinBox(world: string, x1: number, y1: number, z1: number,
+                            x2: number, y2: number, z2: number): Promise<IEntityPosition[]> {
+        return query(QueryKind.BOX, world, [x1, y1, z1, x2, y2, z2]);
+    }
+
+    /**
+     * Find the players nearest to a point, nearest first.
+     * @param {number} count maximum number of players to find
+     * @param {number?} maxDistance only find players within this distance
+     */
+    public static nearest(world: string, x: number, y: number, z: number,
+                          count: number, maxDistance: number = 0): Promise<IEntityPosition[]> {
+        return query(QueryKind.NEAREST, world, [x, y, z, maxDistance], count);
+    }
+}
+
+export default Entities;
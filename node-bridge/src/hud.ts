@@ -0,0 +1,357 @@
+import { messageHandlers, sendSignal } from "./communication";
+import { runAsPlugin } from "./context";
+import { IMessage } from "./messages";
+import { MessageTypes } from "./messageTypes";
+import { Player } from "./player";
+
+const enum UiOp {
+    TITLE = 0,
+    LINE = 1,
+    LINE_REMOVE = 2,
+    ACTION_BAR = 3,
+    BAR = 4,
+    BAR_REMOVE = 5,
+}
+
+const enum BarField {
+    TITLE = 1,
+    PROGRESS = 2,
+    COLOR = 4,
+    STYLE = 8,
+}
+
+/** Maximum payload of a single `UI` frame */
+const MAX_FRAME = 0x7FFF;
+/** Maximum number of lines the server shows in a sidebar */
+const MAX_LINES = 15;
+
+/**
+ * Colors of a boss bar.
+ */
+export const enum BarColor {
+    PINK = 0,
+    BLUE = 1,
+    RED = 2,
+    GREEN = 3,
+    YELLOW = 4,
+    PURPLE = 5,
+    WHITE = 6,
+}
+
+/**
+ * Styles of a boss bar.
+ */
+export const enum BarStyle {
+    SOLID = 0,
+    SEGMENTED_6 = 1,
+    SEGMENTED_10 = 2,
+    SEGMENTED_12 = 3,
+    SEGMENTED_20 = 4,
+}
+
+/**
+ * Values of a boss bar. Values which are left out are not changed.
+ */
+export interface IBossBar {
+    title?: string;
+    /** between 0 and 1 */
+    progress?: number;
+    color?: BarColor;
+    style?: BarStyle;
+}
+
+interface IHudState {
+    title?: string;
+    /** text and score of each line */
+    lines: Map<number, [string, number] | null>;
+    actionBar?: string;
+    bars: Map<number, IBossBar | null>;
+}
+
+function emptyState(): IHudState {
+    return { bars: new Map(), lines: new Map() };
+}
+
+const huds = new Map<string, Hud>();
+const dirty = new Set<Hud>();
+let flushing = false;
+
+messageHandlers.set(MessageTypes.UI, (m: IMessage) => {
+    // the java plugin no longer shows anything to this player
+    const h = (m.data as Buffer).toString("hex");
+    // tslint:disable-next-line:max-line-length
+    const uuid = h.substr(0, 8) + "-" + h.substr(8, 4) + "-" + h.substr(12, 4) + "-" + h.substr(16, 4) + "-" + h.substr(20);
+    const hud = huds.get(uuid);
+    if (hud) {
+        hud.reset();
+        if (!dirty.has(hud)) {
+            // pending changes will be shown again, so the hud is only dropped if there are none
+            huds.delete(uuid);
+        }
+    }
+});
+
+function varInt(v: number): Buffer {
+    const b: number[] = [];
+    while (v > 0x7F) {
+        // tslint:disable-next-line:no-bitwise
+        b.push((v & 0x7F) | 0x80);
+        // tslint:disable-next-line:no-bitwise
+        v >>>= 7;
+    }
+    b.push(v);
+    return Buffer.from(b);
+}
+
+function str(s: string): Buffer {
+    const b = Buffer.from(s, "utf8");
+    const r = Buffer.alloc(2 + b.length);
+    r.writeUInt16BE(b.length, 0);
+    b.copy(r, 2);
+    return r;
+}
+
+function op(o: UiOp): Buffer {
+    return Buffer.from([o]);
+}
+
+/**
+ * Send the changes of all huds which have been changed during this turn of the event loop.
+ */
+function flush() {
+    flushing = false;
+    const frames: Buffer[] = [];
+    let frame: Buffer[] = [];
+    let size = 0;
+    for (const hud of dirty) {
+        const record = hud.encode();
+        if (!record) {
+            continue;
+        }
+        if (size + record.length > MAX_FRAME && size > 0) {
+            frames.push(Buffer.concat(frame, size));
+            frame = [];
+            size = 0;
+        }
+        frame.push(record);
+        size += record.length;
+    }
+    dirty.clear();
+    if (size > 0) {
+        frames.push(Buffer.concat(frame, size));
+    }
+    for (const f of frames) {
+        sendSignal(MessageTypes.UI, f);
+    }
+}
+
+/**
+ * The sidebar, action bar and boss bars shown to a player.
+ *
+ * Changes made during the same turn of the event loop are merged and only the values
+ * which differ from what has already been sent are sent to the server,
+ * which in turn only updates what the player sees if it has changed.
+ */
+export class Hud {
+    /**
+     * @param {Player | string} player a player or the UUID of a player
+     * @returns {Hud} the hud of the player
+     */
+    public static of(player: Player | string): Hud {
+        const uuid = typeof player === "string" ? player : player.uuid;
+        let hud = huds.get(uuid);
+        if (!hud) {
+            hud = new Hud(uuid);
+            huds.set(uuid, hud);
+        }
+        return hud;
+    }
+
+    private sent: IHudState = emptyState();
+    private pending: IHudState = emptyState();
+    private readonly uuidBuff: Buffer;
+
+    private constructor(public readonly uuid: string) {
+        this.uuidBuff = Buffer.from(uuid.replace(/-/g, ""), "hex");
+    }
+
+    /**
+     * Set the title of the sidebar. The sidebar is shown while it has a title that is not empty.
+     */
+    public setTitle(title: string) {
+        this.pending.title = title;
+        this.changed();
+    }
+
+    /**
+     * Set a line of the sidebar. Lines are ordered by score, highest first.
+     * @param {number} id an identifier of the line
+     * @param {string} text the text of the line
+     * @param {number?} score the score of the line, lower ids are placed higher by default
+     * @throws {RangeError} if the sidebar already has 15 other lines
+     */
+    public setLine(id: number, text: string, score: number = -id) {
+        if (!this.hasLine(id) && this.lineCount() >= MAX_LINES) {
+            throw new RangeError("A sidebar can not have more than " + MAX_LINES + " lines.");
+        }
+        this.pending.lines.set(id, [text, score]);
+        this.changed();
+    }
+
+    /**
+     * Remove a line from the sidebar.
+     */
+    public removeLine(id: number) {
+        this.pending.lines.set(id, null);
+        this.changed();
+    }
+
+    /**
+     * Set the text of the action bar, which is kept visible until it is set to an empty string.
+     */
+    public setActionBar(text: string) {
+        this.pending.actionBar = text;
+        this.changed();
+    }
+
+    /**
+     * Show a boss bar or change some of its values.
+     * @param {number} id an identifier of the boss bar
+     */
+    public setBossBar(id: number, bar: IBossBar) {
+        const p = this.pending.bars.get(id);
+        this.pending.bars.set(id, p ? Object.assign(p, bar) : Object.assign({}, bar));
+        this.changed();
+    }
+
+    /**
+     * Remove a boss bar.
+     */
+    public removeBossBar(id: number) {
+        this.pending.bars.set(id, null);
+        this.changed();
+    }
+
+    /**
+     * Forget what has been sent, since the server no longer shows it.
+     * @private
+     */
+    public reset() {
+        this.sent = emptyState();
+    }
+
+    /**
+     * Encode the pending changes which differ from what has been sent.
+     * @private
+     */
+    public encode(): Buffer | null {
+        const p = this.pending;
+        const s = this.sent;
+        this.pending = emptyState();
+        const ops: Buffer[] = [];
+        if (p.title !== undefined && p.title !== (s.title || "")) {
+            ops.push(op(UiOp.TITLE), str(p.title));
+            s.title = p.title;
+        }
+        for (const [id, line] of p.lines) {
+            const prev = s.lines.get(id);
+            if (line === null) {
+                if (prev) {
+                    ops.push(op(UiOp.LINE_REMOVE), varInt(id));
+                    s.lines.delete(id);
+                }
+            } else if (!prev || prev[0] !== line[0] || prev[1] !== line[1]) {
+                const score = Buffer.alloc(4);
+                score.writeInt32BE(line[1], 0);
+                ops.push(op(UiOp.LINE), varInt(id), score, str(line[0]));
+                s.lines.set(id, line);
+            }
+        }
+        if (p.actionBar !== undefined && p.actionBar !== (s.actionBar || "")) {
+            ops.push(op(UiOp.ACTION_BAR), str(p.actionBar));
+            s.actionBar = p.actionBar;
+        }
+        for (const [id, bar] of p.bars) {
+            const prev = s.bars.get(id);
+            if (bar === null) {
+                if (prev) {
+                    ops.push(op(UiOp.BAR_REMOVE), varInt(id));
+                    s.bars.delete(id);
+                }
+                continue;
+            }
+            const fields: Buffer[] = [];
+            let mask = 0;
+            if (bar.title !== undefined && (!prev || bar.title !== prev.title)) {
+                // tslint:disable-next-line:no-bitwise
+                mask |= BarField.TITLE;
+                fields.push(str(bar.title));
+            }
+            if (bar.progress !== undefined && (!prev || bar.progress !== prev.progress)) {
+                // tslint:disable-next-line:no-bitwise
+                mask |= BarField.PROGRESS;
+                const f = Buffer.alloc(4);
+                f.writeFloatBE(bar.progress, 0);
+                fields.push(f);
+            }
+            if (bar.color !== undefined && (!prev || bar.color !== prev.color)) {
+                // tslint:disable-next-line:no-bitwise
+                mask |= BarField.COLOR;
+                fields.push(Buffer.from([bar.color]));
+            }
+            if (bar.style !== undefined && (!prev || bar.style !== prev.style)) {
+                // tslint:disable-next-line:no-bitwise
+                mask |= BarField.STYLE;
+                fields.push(Buffer.from([bar.style]));
+            }
+            if (mask !== 0 || !prev) {
+                ops.push(op(UiOp.BAR), varInt(id), Buffer.from([mask]), ...fields);
+                s.bars.set(id, Object.assign(prev || {}, bar));
+            }
+        }
+        if (ops.length === 0) {
+            return null;
+        }
+        const len = Buffer.alloc(2);
+        const body = Buffer.concat(ops);
+        len.writeUInt16BE(body.length, 0);
+        return Buffer.concat([this.uuidBuff, len, body]);
+    }
+
+    /**
+     * Whether a line is shown once the pending changes are sent.
+     */
+    private hasLine(id: number): boolean {
+        const p = this.pending.lines.get(id);
+        return p === undefined ? this.sent.lines.has(id) : p !== null;
+    }
+
+    /**
+     * Number of lines shown once the pending changes are sent.
+     */
+    private lineCount(): number {
+        let n = this.sent.lines.size;
+        for (const [id, line] of this.pending.lines) {
+            if (this.sent.lines.has(id) !== (line !== null)) {
+                n += line === null ? -1 : 1;
+            }
+        }
+        return n;
+    }
+
+    private changed() {
+        // a hud which has been reset is used again, instead of a second one for the same player
+        if (!huds.has(this.uuid)) {
+            huds.set(this.uuid, this);
+        }
+        dirty.add(this);
+        if (!flushing) {
+            flushing = true;
+            // the batch holds changes of all plugins, so it is not sent on behalf of the plugin which changed first;
+            // hud updates are therefore accounted to the bridge and not limited per plugin
+            runAsPlugin(0, () => setImmediate(flush));
+        }
+    }
+}
+
+export default Hud;
@@ -5,7 +5,15 @@ if (process.mainModule === module) {
     initialize();
 }
 
+export { encodeSignal } from "./communication";
+export { MessageTypes } from "./messageTypes";
+export { Entities, IEntityPosition } from "./entities";
 export { CommandReservedError, PluginError, PluginErrors } from "./errors";
+export { BarColor, BarStyle, Hud, IBossBar } from "./hud";
+export { IItemStack, Inventory } from "./inventory";
 export { Player } from "./player";
-export { CommandHandler, Plugin, Plugin as default, IPluginStorage, ICommandOptions, ICommandSender } from "./plugin";
-export { IStorageBackend, jsonStorageBackend, sessionStorageBackend } from "./storage-backend";
+export { Region, RegionProgress } from "./region";
+export { IScheduleOptions, Scheduler, TaskHandler } from "./scheduler";
+// tslint:disable-next-line:max-line-length
+export { CommandHandler, getCommandStats, getPluginStats, Plugin, Plugin as default, ICommandStats, IPluginStats, IPluginStorage, ICommandOptions, ICommandSender } from "./plugin";
+export { IStorageBackend, javaStorageBackend, jsonStorageBackend, sessionStorageBackend } from "./storage-backend";
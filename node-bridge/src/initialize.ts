@@ -1,6 +1,9 @@
-import { init } from "./communication";
+import { init, messageHandlers, sendSignal } from "./communication";
+import { runAsPlugin, setPluginName } from "./context";
 
 import { promises as fs } from "fs";
+import { setMaterialTable } from "./inventory";
+import { MessageTypes } from "./messageTypes";
 import MetaPlugin from "./metaplugin/index";
 import { Plugin, registeredPlugins } from "./plugin";
 
@@ -84,10 +87,27 @@ function depToPlugin(dep: string): Promise<{ new(): Plugin; } | null> {
     });
 }
 
+/**
+ * Resolves when the java plugin enables this process.
+ * Until then the process is a standby which has loaded its plugins but not started them.
+ */
+function enabled(): Promise<void> {
+    return new Promise<void>((s) => {
+        messageHandlers.set(MessageTypes.ENABLE, (m) => {
+            messageHandlers.delete(MessageTypes.ENABLE);
+            if (m.data instanceof Buffer) {
+                setMaterialTable(m.data);
+            }
+            s();
+        });
+    });
+}
+
 /**
  * Called to start up plugins.
  */
 export default async function initialize() {
+    const enable = enabled();
     init();
     const plugins: Array<{ new(): Plugin; }> = [
         MetaPlugin,
@@ -131,26 +151,34 @@ export default async function initialize() {
         console.error("node-spigot-bridge:", e);
     }
 
+    await enable;
+
     if (data && data.start) {
         await data.start(true);
     }
-    const pstart: Plugin[] = [];
-    for (const P of plugins) {
+    const pstart: Array<[number, Plugin]> = [];
+    plugins.forEach((P, i) => {
+        // frames are accounted per plugin by the java plugin, using ids which are assigned in load order
+        const id = i + 1;
         try {
-            const p = new P();
+            const p = runAsPlugin(id, () => new P());
             registeredPlugins.push(p);
+            setPluginName(id, String(p.name));
+            sendSignal(MessageTypes.PLUGIN, id, Buffer.from(String(p.name), "utf8"));
             if (p.start) {
-                pstart.push(p);
+                pstart.push([id, p]);
             }
         } catch (e) {
             // tslint:disable-next-line:no-console
             console.error("node-spigot-bridge: failed to instanciate plugin:", e);
         }
-    }
-    for (const p of pstart) {
-        if (p.start) {
-            p.start();
-        }
+    });
+    for (const [id, p] of pstart) {
+        runAsPlugin(id, () => {
+            if (p.start) {
+                p.start();
+            }
+        });
     }
     if (data && data.start) {
         await data.start(false);
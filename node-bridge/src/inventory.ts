@@ -0,0 +1,251 @@
+import { sendAsync } from "./communication";
+import { MessageTypes } from "./messageTypes";
+import { Player } from "./player";
+
+const enum InventoryOp {
+    GET = 0,
+    SET = 1,
+    DIFF = 2,
+}
+
+const enum ItemTag {
+    END = 0,
+    DAMAGE = 1,
+    NAME = 2,
+    LORE = 3,
+    ENCHANTMENTS = 4,
+    UNBREAKABLE = 5,
+}
+
+/**
+ * A stack of items in an inventory slot.
+ */
+export interface IItemStack {
+    /** name of the material, such as `DIAMOND_SWORD` */
+    type: string;
+    amount: number;
+    damage?: number;
+    displayName?: string;
+    lore?: string[];
+    /** enchantment keys, such as `sharpness`, mapped to levels */
+    enchantments?: { [key: string]: number; };
+    unbreakable?: boolean;
+}
+
+let materials: string[] = [];
+let materialIds = new Map<string, number>();
+
+/**
+ * Set the material table which is sent by the java plugin with `ENABLE`.
+ * @param {Buffer} table a sequence of `[u16 length][name]`
+ */
+export function setMaterialTable(table: Buffer) {
+    const names: string[] = [];
+    const ids = new Map<string, number>();
+    for (let off = 0; off + 2 <= table.length;) {
+        const len = table.readUInt16BE(off);
+        const name = table.toString("utf8", off + 2, off + 2 + len);
+        ids.set(name, names.length);
+        names.push(name);
+        off += 2 + len;
+    }
+    materials = names;
+    materialIds = ids;
+}
+
+function writeVarInt(out: number[], v: number) {
+    while (v > 0x7F) {
+        // tslint:disable-next-line:no-bitwise
+        out.push((v & 0x7F) | 0x80);
+        // tslint:disable-next-line:no-bitwise
+        v >>>= 7;
+    }
+    out.push(v);
+}
+
+function writeString(out: number[], s: string) {
+    const b = Buffer.from(s, "utf8");
+    // tslint:disable-next-line:no-bitwise
+    out.push(b.length >> 8, b.length & 0xFF);
+    for (const x of b) {
+        out.push(x);
+    }
+}
+
+function writeSection(out: number[], tag: ItemTag, section: number[]) {
+    out.push(tag);
+    writeVarInt(out, section.length);
+    out.push(...section);
+}
+
+function encodeItem(out: number[], item: IItemStack | null) {
+    if (!item || item.type === "AIR") {
+        out.push(0);
+        return;
+    }
+    const id = materialIds.get(item.type);
+    if (id === undefined) {
+        throw new Error("Unknown material " + item.type);
+    }
+    writeVarInt(out, id + 1);
+    writeVarInt(out, item.amount);
+    let s: number[] = [];
+    if (item.damage) {
+        writeVarInt(s, item.damage);
+        writeSection(out, ItemTag.DAMAGE, s);
+        s = [];
+    }
+    if (item.displayName !== undefined) {
+        writeString(s, item.displayName);
+        writeSection(out, ItemTag.NAME, s);
+        s = [];
+    }
+    if (item.lore) {
+        for (const l of item.lore) {
+            writeString(s, l);
+        }
+        writeSection(out, ItemTag.LORE, s);
+        s = [];
+    }
+    if (item.enchantments) {
+        for (const k of Object.keys(item.enchantments)) {
+            writeString(s, k);
+            writeVarInt(s, item.enchantments[k]);
+        }
+        writeSection(out, ItemTag.ENCHANTMENTS, s);
+        s = [];
+    }
+    if (item.unbreakable) {
+        writeSection(out, ItemTag.UNBREAKABLE, s);
+    }
+    out.push(ItemTag.END);
+}
+
+/**
+ * Decodes items from a reply, keeping track of the position.
+ */
+class Reader {
+    public off = 0;
+
+    constructor(private readonly b: Buffer) {}
+
+    public get done(): boolean {
+        return this.off >= this.b.length;
+    }
+
+    public varInt(): number {
+        let v = 0;
+        let shift = 0;
+        let x: number;
+        do {
+            x = this.b[this.off++];
+            // tslint:disable-next-line:no-bitwise
+            v |= (x & 0x7F) << shift;
+            shift += 7;
+        // tslint:disable-next-line:no-bitwise
+        } while (x & 0x80);
+        // tslint:disable-next-line:no-bitwise
+        return v >>> 0;
+    }
+
+    public string(): string {
+        const len = this.b.readUInt16BE(this.off);
+        this.off += 2 + len;
+        return this.b.toString("utf8", this.off - len, this.off);
+    }
+
+    public item(): IItemStack | null {
+        const id = this.varInt();
+        if (id === 0) {
+            return null;
+        }
+        const item: IItemStack = {
+            amount: 0,
+            type: materials[id - 1],
+        };
+        item.amount = this.varInt();
+        let tag: number;
+        while ((tag = this.b[this.off++]) !== ItemTag.END) {
+            const end = this.varInt() + this.off;
+            if (tag === ItemTag.DAMAGE) {
+                item.damage = this.varInt();
+            } else if (tag === ItemTag.NAME) {
+                item.displayName = this.string();
+            } else if (tag === ItemTag.LORE) {
+                item.lore = [];
+                while (this.off < end) {
+                    item.lore.push(this.string());
+                }
+            } else if (tag === ItemTag.ENCHANTMENTS) {
+                item.enchantments = {};
+                while (this.off < end) {
+                    const k = this.string();
+                    item.enchantments[k] = this.varInt();
+                }
+            } else if (tag === ItemTag.UNBREAKABLE) {
+                item.unbreakable = true;
+            }
+            // unknown sections are skipped
+            this.off = end;
+        }
+        return item;
+    }
+}
+
+function uuidBuffer(player: Player | string): Buffer {
+    return Buffer.from((typeof player === "string" ? player : player.uuid).replace(/-/g, ""), "hex");
+}
+
+/**
+ * Access to the inventories of online players.
+ *
+ * Items are sent in a compact binary form where materials are referred to by numeric ids.
+ */
+export class Inventory {
+    /**
+     * Get the contents of the inventory of a player, indexed by slot.
+     */
+    public static get(player: Player | string): Promise<Array<IItemStack | null>> {
+        return sendAsync<Buffer>(MessageTypes.INVENTORY, InventoryOp.GET, uuidBuffer(player)).then((b) => {
+            const r = new Reader(b);
+            const ret: Array<IItemStack | null> = [];
+            for (let n = r.varInt(); n > 0; n--) {
+                ret.push(r.item());
+            }
+            return ret;
+        });
+    }
+
+    /**
+     * Get the slots of the inventory of a player which have changed since the last `get` or `diff` for that player.
+     * A slot which has become empty maps to `null`.
+     */
+    public static diff(player: Player | string): Promise<Map<number, IItemStack | null>> {
+        const d = sendAsync<Buffer | undefined>(MessageTypes.INVENTORY, InventoryOp.DIFF, uuidBuffer(player));
+        return d.then((b) => {
+            const ret = new Map<number, IItemStack | null>();
+            if (b) {
+                const r = new Reader(b);
+                while (!r.done) {
+                    ret.set(r.varInt(), r.item());
+                }
+            }
+            return ret;
+        });
+    }
+
+    /**
+     * Set slots in the inventory of a player. A `null` item empties the slot.
+     */
+    public static set(player: Player | string, slots: Map<number, IItemStack | null>): Promise<void> {
+        const out: number[] = [];
+        for (const [slot, item] of slots) {
+            writeVarInt(out, slot);
+            encodeItem(out, item);
+        }
+        return sendAsync<undefined>(MessageTypes.INVENTORY, InventoryOp.SET,
+            Buffer.concat([ uuidBuffer(player), Buffer.from(out) ])).then(() => undefined);
+    }
+}
+
+export default Inventory;
@@ -13,6 +13,26 @@ export const enum MessageTypes {
     MSG_PLAYER = 6,
     MSG_PLAYER_MULTI = 7,
 
+    STORAGE_GET = 8,
+    STORAGE_SET = 9,
+    STORAGE_SCAN = 10,
+
+    SCHEDULE = 11,
+    TICK = 12,
+
+    REGION_READ = 13,
+    REGION_WRITE = 14,
+
+    ENTITY_QUERY = 15,
+
+    INVENTORY = 16,
+
+    UI = 17,
+
+    COMMANDS = 18,
+
+    PLUGIN = 19,
+
     ERROR = 30,
     REPLY = 31,
 }
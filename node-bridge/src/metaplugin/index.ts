@@ -1,4 +1,4 @@
-import Plugin, { ICommandSender, registeredPlugins } from "../plugin";
+import Plugin, { getCommandStats, getPluginStats, ICommandSender, registeredPlugins } from "../plugin";
 
 import Player from "../player";
 
@@ -10,7 +10,7 @@ class MetaPlugin extends Plugin {
         this.registerCommand("nodejs", (s, a, subcommand) => this.nodejs(s, a, subcommand), {
             description: "Status for node-spigot-bridge.",
             permission: "nodejs.info",
-            usage: "<command> version|plugins",
+            usage: "<command> version|plugins|stats|commands",
         });
     }
 
@@ -42,6 +42,31 @@ class MetaPlugin extends Plugin {
             }
             return false;
         }
+        if (subcommand === "stats") {
+            if (sender.player) {
+                const player = sender.player;
+                return getPluginStats()
+                    .then((stats) => Player.get(player).sendMessage(...stats.map((p) => (p.name || "(bridge)") + ": "
+                        + p.frames + " frames, " + p.bytes + " bytes, "
+                        + (p.handlerNanos / 1e6).toFixed(1) + " ms, "
+                        + p.deferred + " deferred, " + p.dropped + " dropped")))
+                    .then(() => true);
+            }
+            return false;
+        }
+        if (subcommand === "commands") {
+            if (sender.player) {
+                const player = sender.player;
+                return getCommandStats()
+                    .then((stats) => Player.get(player).sendMessage(...stats.map((c) => c.name + ": "
+                        + c.calls + " calls, " + c.timeouts + " timeouts, "
+                        + (c.waitNanos / 1e6).toFixed(1) + " ms waited, "
+                        + (c.maxWaitNanos / 1e6).toFixed(1) + " ms max, "
+                        + c.overBudgetTicks + " ticks over budget, " + c.skipped + " skipped")))
+                    .then(() => true);
+            }
+            return false;
+        }
         return true;
     }
 }
@@ -15,6 +15,7 @@ const enum PlayerProp {
 
     PERMISSIONS = 0x100,
     PERMISSION_MATCHING = 0x101,
+    PERMISSIONS_REVOKE = 0x102,
 
     UUID = 0x200,
 }
@@ -267,7 +268,7 @@ export class Player {
             return Promise.resolve();
         }
         const p = Buffer.concat([ this.uuidBuff, Buffer.from(perms.join(","), "utf8") ]);
-        return sendSignal(MessageTypes.GET_PLAYER, PlayerProp.PERMISSIONS, p);
+        return sendSignal(MessageTypes.SET_PLAYER, PlayerProp.PERMISSIONS, p);
     }
 
     /**
@@ -287,7 +288,21 @@ export class Player {
             Buffer.from([(ticks >> 24) & 0xFF, (ticks >> 16) & 0xFF, (ticks >> 8) & 0xFF, ticks & 0xFF]),
             Buffer.from(perms.join(","), "utf8"),
         ]);
-        return sendSignal(MessageTypes.GET_PLAYER, PlayerProp.PERMISSION_MATCHING, p);
+        return sendSignal(MessageTypes.SET_PLAYER, PlayerProp.PERMISSION_MATCHING, p);
+    }
+
+    /**
+     * Revoke permissions which have been set with `setPermissions` or `setTempPermissions`.
+     * @param {string[]} perms permissions to revoke
+     * @returns {Promise<void>} resolves when the request has been passed to the server
+     */
+    public unsetPermissions(...perms: string[]): Promise<void> {
+        perms = perms.filter((x) => x ? true : false);
+        if (perms.length === 0) {
+            return Promise.resolve();
+        }
+        const p = Buffer.concat([ this.uuidBuff, Buffer.from(perms.join(","), "utf8") ]);
+        return sendSignal(MessageTypes.SET_PLAYER, PlayerProp.PERMISSIONS_REVOKE, p);
     }
 }
 
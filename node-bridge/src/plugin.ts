@@ -1,4 +1,5 @@
-import { messageHandlers, sendReply, sendSignal } from "./communication";
+import { messageHandlers, sendAsync, sendReply, sendSignal } from "./communication";
+import { currentPluginId, pluginId, runAsPlugin } from "./context";
 import { CommandReservedError } from "./errors";
 import { IMessage } from "./messages";
 import { MessageTypes } from "./messageTypes";
@@ -18,6 +19,8 @@ export interface ICommandOptions {
     permissionMessage?: string;
     /** Sets that this command is synchronous and should block until the command has resolved */
     sync?: boolean;
+    /** Milliseconds a synchronous command may block before the server continues without its result */
+    timeout?: number;
     /** Description on how to use the command */
     usage?: string;
 }
@@ -38,10 +41,20 @@ interface IRegCmd {
     pm?: string;
     /** sync */
     s?: true;
+    /** timeout */
+    t?: number;
     /** usage */
     u?: string;
 }
 
+const enum CommandsOp {
+    REGISTER = 0,
+    UNREGISTER = 1,
+}
+
+/** Maximum payload of a single `COMMANDS` frame */
+const MAX_FRAME = 0x7FFF;
+
 /**
  * The entity which invoked the command.
  */
@@ -65,6 +78,55 @@ export type CommandHandler = (sender: ICommandSender, cmd: string, ...args: stri
  */
 export const registeredCommands = new Map<string, [CommandHandler, ICommandOptions | undefined]>();
 
+/**
+ * Name and id of the plugin which registered each command.
+ */
+const commandOwners = new Map<string, [string, number]>();
+
+/** Commands waiting to be sent for registration, by owning plugin */
+const pendingCommands = new Map<string, string[]>();
+let pendingFlush: Promise<void> | null = null;
+
+function sendCommands(owner: string, cmds: string[]): Promise<void> {
+    const b = Buffer.from("{\"o\":" + JSON.stringify(owner) + ",\"c\":[" + cmds.join(",") + "]}", "utf8");
+    return sendSignal(MessageTypes.COMMANDS, CommandsOp.REGISTER, b);
+}
+
+/**
+ * Send all commands registered during the last turn of the event loop, in as few frames as possible.
+ */
+function flushCommands(): Promise<void> {
+    pendingFlush = null;
+    const sent: Array<Promise<void>> = [];
+    for (const [owner, cmds] of pendingCommands) {
+        runAsPlugin(pluginId(owner), () => flushOwner(owner, cmds, sent));
+    }
+    pendingCommands.clear();
+    return Promise.all(sent).then(() => undefined);
+}
+
+/**
+ * Send the pending commands of a plugin on its behalf.
+ */
+function flushOwner(owner: string, cmds: string[], sent: Array<Promise<void>>) {
+    const head = Buffer.byteLength(owner, "utf8") + 16;
+    let batch: string[] = [];
+    let size = head;
+    for (const c of cmds) {
+        const len = Buffer.byteLength(c, "utf8") + 1;
+        if (batch.length !== 0 && size + len > MAX_FRAME) {
+            sent.push(sendCommands(owner, batch));
+            batch = [];
+            size = head;
+        }
+        batch.push(c);
+        size += len;
+    }
+    if (batch.length !== 0) {
+        sent.push(sendCommands(owner, batch));
+    }
+}
+
 /**
  * List of plugins which have been registered (in order of registration).
  */
@@ -119,13 +181,15 @@ export abstract class Plugin<S extends IPluginStorage> {
      * @param {string} command command to register
      * @param {function} commandHandler callback to run when command is called
      * @param {object?} options optional options for command
-     * @returns {Promise<void>} promise which resolves when command has been sent to be registered
+     * @returns {Promise<void>} promise which resolves when command has been sent to be registered,
+     *                         commands registered during the same turn of the event loop are sent together
      */
     public registerCommand(command: string, commandHandler: CommandHandler, options?: ICommandOptions): Promise<void> {
         if (registeredCommands.has(command)) {
             throw new CommandReservedError("Command is already reserved: " + command);
         }
         registeredCommands.set(command, [commandHandler, options]);
+        commandOwners.set(command, [this.name, currentPluginId()]);
         const cmd: IRegCmd = { a: command };
         if (options) {
             if (options.description) {
@@ -143,11 +207,40 @@ export abstract class Plugin<S extends IPluginStorage> {
             if (options.sync) {
                 cmd.s = true;
             }
+            if (options.timeout !== undefined) {
+                cmd.t = options.timeout;
+            }
             if (options.usage) {
                 cmd.u = options.usage;
             }
         }
-        return sendSignal(MessageTypes.COMPLETE_COMMAND, Buffer.from(JSON.stringify(cmd), "utf8"));
+        let pending = pendingCommands.get(this.name);
+        if (!pending) {
+            pending = [];
+            pendingCommands.set(this.name, pending);
+        }
+        pending.push(JSON.stringify(cmd));
+        if (!pendingFlush) {
+            // each plugin's commands are sent on its own behalf, not on behalf of the plugin which registered first
+            pendingFlush = runAsPlugin(0, () => new Promise<void>((s) => setImmediate(s)).then(flushCommands));
+        }
+        return pendingFlush;
+    }
+
+    /**
+     * Unregister all commands which have been registered by this plugin.
+     *
+     * @returns {Promise<void>} promise which resolves when the commands have been sent to be unregistered
+     */
+    public unregisterCommands(): Promise<void> {
+        for (const [command, owner] of commandOwners) {
+            if (owner[0] === this.name) {
+                commandOwners.delete(command);
+                registeredCommands.delete(command);
+            }
+        }
+        pendingCommands.delete(this.name);
+        return sendSignal(MessageTypes.COMMANDS, CommandsOp.UNREGISTER, Buffer.from(this.name, "utf8"));
     }
 
     /**
@@ -200,7 +293,110 @@ messageHandlers.set(MessageTypes.EXECUTE_COMMAND, (m: IMessage) => {
     if (e.s.p) {
         s.player = e.s.p;
     }
-    c[0](s, e.a, ...(e.p || []));
+    const owner = commandOwners.get(e.a);
+    const syncId = m.syncId;
+    runAsPlugin(owner ? owner[1] : 0, () => {
+        let r: boolean | Promise<boolean>;
+        try {
+            r = c[0](s, e.a, ...(e.p || []));
+        } catch (err) {
+            // tslint:disable-next-line:no-console
+            console.error("node-spigot-bridge: command failed:", err);
+            r = false;
+        }
+        if (syncId === undefined) {
+            return;
+        }
+        // a sync command blocks the server until it has the result
+        if (typeof r === "boolean") {
+            sendReply(syncId, r ? 1 : 0);
+            return;
+        }
+        r.then((x) => sendReply(syncId, x ? 1 : 0), (err) => {
+            // tslint:disable-next-line:no-console
+            console.error("node-spigot-bridge: command failed:", err);
+            return sendReply(syncId, 0);
+        });
+    });
 });
 
+/**
+ * Resources used by a plugin, as accounted by the java plugin.
+ */
+export interface IPluginStats {
+    /** name of the plugin, empty for the bridge itself */
+    name: string;
+    /** number of frames sent */
+    frames: number;
+    /** number of bytes sent */
+    bytes: number;
+    /** nanoseconds the java plugin has spent handling the frames */
+    handlerNanos: number;
+    /** longest time spent handling a single frame */
+    maxHandlerNanos: number;
+    /** number of frames which have been deferred by rate limits */
+    deferred: number;
+    /** number of frames which have been dropped by rate limits */
+    dropped: number;
+}
+
+/**
+ * Time the server has spent waiting for a synchronous command.
+ */
+export interface ICommandStats {
+    /** name of the command */
+    name: string;
+    /** number of calls which the server waited for */
+    calls: number;
+    /** number of calls which did not reply before their deadline */
+    timeouts: number;
+    /** nanoseconds the server has spent waiting */
+    waitNanos: number;
+    /** longest time spent waiting for a single call */
+    maxWaitNanos: number;
+    /** number of ticks in which waiting for the command exceeded the budget of the tick */
+    overBudgetTicks: number;
+    /** number of calls which were not waited for since the budget of the tick had been spent */
+    skipped: number;
+}
+
+interface IStatsReply {
+    p: Array<{ n: string, f: number, b: number, h: number, hm: number, q: number, d: number }>;
+    c: Array<{ n: string, k: number, t: number, w: number, wm: number, o: number, s: number }>;
+}
+
+function queryStats(): Promise<IStatsReply> {
+    return sendAsync<Buffer>(MessageTypes.PLUGIN).then((b) => JSON.parse(b.toString("utf8")));
+}
+
+/**
+ * Get the resources used by each plugin since the server started.
+ */
+export function getPluginStats(): Promise<IPluginStats[]> {
+    return queryStats().then((j) => j.p.map((p) => ({
+        bytes: p.b,
+        deferred: p.q,
+        dropped: p.d,
+        frames: p.f,
+        handlerNanos: p.h,
+        maxHandlerNanos: p.hm,
+        name: p.n,
+    })));
+}
+
+/**
+ * Get the time the server has spent waiting for each synchronous command since it started.
+ */
+export function getCommandStats(): Promise<ICommandStats[]> {
+    return queryStats().then((j) => (j.c || []).map((c) => ({
+        calls: c.k,
+        maxWaitNanos: c.wm,
+        name: c.n,
+        overBudgetTicks: c.o,
+        skipped: c.s,
+        timeouts: c.t,
+        waitNanos: c.w,
+    })));
+}
+
 export default Plugin;
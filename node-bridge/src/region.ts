@@ -0,0 +1,222 @@
+import { messageHandlers, sendAsync, sendSignal } from "./communication";
+import { IMessage } from "./messages";
+import { MessageTypes } from "./messageTypes";
+
+const enum RegionOp {
+    BEGIN = 0,
+    DATA = 1,
+    COMMIT = 2,
+}
+
+/** Maximum payload of a single region frame, excluding the region id */
+const MAX_FRAME = 0x7FFF - 4;
+
+/** Callback with the progress of a region write. */
+export type RegionProgress = (done: number, total: number) => void;
+
+let regionIndex = 1;
+const reading = new Map<number, Buffer[]>();
+const writing = new Map<number, RegionProgress>();
+
+messageHandlers.set(MessageTypes.REGION_READ, (m: IMessage) => {
+    const b = m.data as Buffer;
+    const r = reading.get(b.readUInt32BE(0));
+    if (r) {
+        r.push(b.slice(4));
+    }
+});
+
+messageHandlers.set(MessageTypes.REGION_WRITE, (m: IMessage) => {
+    const b = m.data as Buffer;
+    const p = writing.get(b.readUInt32BE(0));
+    if (p) {
+        p(b.readUInt32BE(4), b.readUInt32BE(8));
+    }
+});
+
+function nextId(): number {
+    const id = regionIndex;
+    // tslint:disable-next-line:no-bitwise
+    regionIndex = (regionIndex + 1) >>> 0 || 1;
+    return id;
+}
+
+/**
+ * A cuboid region of blocks, stored as a palette of block data strings and a palette index per block.
+ *
+ * The index of block `(x, y, z)` relative to the lowest corner is `(y * dz + z) * dx + x`.
+ */
+export class Region {
+    /**
+     * Read a region of blocks from a world.
+     * @param {string} world name of the world
+     * @returns {Promise<Region>} the region, between and including both corners
+     */
+    public static read(world: string, x1: number, y1: number, z1: number,
+                       x2: number, y2: number, z2: number): Promise<Region> {
+        const id = nextId();
+        const chunks: Buffer[] = [];
+        reading.set(id, chunks);
+        return sendAsync<undefined>(MessageTypes.REGION_READ, Region.header(id, world, x1, y1, z1, x2, y2, z2))
+            .then(() => {
+                reading.delete(id);
+                const b = Buffer.concat(chunks);
+                const palette: string[] = [];
+                const size = b.readUInt16BE(0);
+                let off = 2;
+                for (let i = 0; i < size; i++) {
+                    const l = b.readUInt16BE(off);
+                    palette.push(b.toString("utf8", off + 2, off + 2 + l));
+                    off += 2 + l;
+                }
+                const bits = b[off++];
+                const r = new Region(world, Math.min(x1, x2), Math.min(y1, y2), Math.min(z1, z2),
+                    Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1, Math.abs(z2 - z1) + 1, palette);
+                const blocks = r.blocks;
+                let pos = off * 8;
+                for (let i = 0; i < blocks.length; i++) {
+                    let v = 0;
+                    for (let j = 0; j < bits; j++, pos++) {
+                        // tslint:disable-next-line:no-bitwise
+                        v = (v << 1) | ((b[pos >> 3] >> (7 - (pos & 7))) & 1);
+                    }
+                    blocks[i] = v;
+                }
+                return r;
+            }, (e) => {
+                reading.delete(id);
+                throw e;
+            });
+    }
+
+    private static header(id: number, world: string, x1: number, y1: number, z1: number,
+                          x2: number, y2: number, z2: number): Buffer {
+        const w = Buffer.from(world, "utf8");
+        const b = Buffer.alloc(4 + 1 + w.length + 24);
+        b.writeUInt32BE(id, 0);
+        b[4] = w.length;
+        w.copy(b, 5);
+        let off = 5 + w.length;
+        for (const v of [x1, y1, z1, x2, y2, z2]) {
+            b.writeInt32BE(v, off);
+            off += 4;
+        }
+        return b;
+    }
+
+    /** Palette index of each block */
+    public readonly blocks: Uint16Array;
+    /** Block data strings, the empty string leaves a block unchanged when written */
+    public readonly palette: string[];
+    private readonly paletteIds = new Map<string, number>();
+
+    /**
+     * Create a region.
+     * @param {string} world name of the world
+     * @param {number} x lowest x coordinate
+     * @param {number} y lowest y coordinate
+     * @param {number} z lowest z coordinate
+     * @param {number} dx size along the x axis
+     * @param {number} dy size along the y axis
+     * @param {number} dz size along the z axis
+     * @param {string[]} palette initial palette, where the first entry is used for all blocks
+     */
+    public constructor(public readonly world: string,
+                       public readonly x: number, public readonly y: number, public readonly z: number,
+                       public readonly dx: number, public readonly dy: number, public readonly dz: number,
+                       palette: string[] = [""]) {
+        this.palette = palette;
+        palette.forEach((p, i) => this.paletteIds.set(p, i));
+        this.blocks = new Uint16Array(dx * dy * dz);
+    }
+
+    /**
+     * Get the block data at a position relative to the lowest corner.
+     */
+    public get(x: number, y: number, z: number): string {
+        return this.palette[this.blocks[(y * this.dz + z) * this.dx + x]];
+    }
+
+    /**
+     * Set the block data at a position relative to the lowest corner.
+     */
+    public set(x: number, y: number, z: number, blockData: string) {
+        this.blocks[(y * this.dz + z) * this.dx + x] = this.paletteId(blockData);
+    }
+
+    /**
+     * Set all blocks of the region.
+     */
+    public fill(blockData: string) {
+        this.blocks.fill(this.paletteId(blockData));
+    }
+
+    /**
+     * Write the region to the world. Blocks are placed over a number of ticks.
+     * @param {function?} progress called each tick blocks have been placed
+     * @returns {Promise<void>} resolves when all blocks have been placed
+     */
+    public write(progress?: RegionProgress): Promise<void> {
+        const id = nextId();
+        const data = this.encode();
+        sendSignal(MessageTypes.REGION_WRITE, RegionOp.BEGIN, Region.header(id, this.world, this.x, this.y, this.z,
+            this.x + this.dx - 1, this.y + this.dy - 1, this.z + this.dz - 1));
+        const head = Buffer.alloc(4);
+        head.writeUInt32BE(id, 0);
+        for (let off = 0; off < data.length; off += MAX_FRAME) {
+            sendSignal(MessageTypes.REGION_WRITE, RegionOp.DATA,
+                Buffer.concat([ head, data.slice(off, off + MAX_FRAME) ]));
+        }
+        if (progress) {
+            writing.set(id, progress);
+        }
+        const done = () => {
+            writing.delete(id);
+        };
+        return sendAsync<undefined>(MessageTypes.REGION_WRITE, RegionOp.COMMIT, head).then(done, (e) => {
+            done();
+            throw e;
+        });
+    }
+
+    private paletteId(blockData: string): number {
+        let i = this.paletteIds.get(blockData);
+        if (i === undefined) {
+            i = this.palette.length;
+            if (i > 0xFFFF) {
+                throw new RangeError("Region palette is full.");
+            }
+            this.palette.push(blockData);
+            this.paletteIds.set(blockData, i);
+        }
+        return i;
+    }
+
+    private encode(): Buffer {
+        const p = this.palette.map((s) => Buffer.from(s, "utf8"));
+        const bits = Math.max(1, Math.ceil(Math.log2(this.palette.length)));
+        const head = Buffer.alloc(2 + p.reduce((l, s) => l + 2 + s.length, 0) + 1);
+        head.writeUInt16BE(p.length, 0);
+        let off = 2;
+        for (const s of p) {
+            head.writeUInt16BE(s.length, off);
+            s.copy(head, off + 2);
+            off += 2 + s.length;
+        }
+        head[off] = bits;
+        const packed = Buffer.alloc(Math.ceil(this.blocks.length * bits / 8));
+        let pos = 0;
+        for (const v of this.blocks) {
+            for (let j = bits - 1; j >= 0; j--, pos++) {
+                // tslint:disable-next-line:no-bitwise
+                if ((v >> j) & 1) {
+                    // tslint:disable-next-line:no-bitwise
+                    packed[pos >> 3] |= 0x80 >> (pos & 7);
+                }
+            }
+        }
+        return Buffer.concat([ head, packed ]);
+    }
+}
+
+export default Region;
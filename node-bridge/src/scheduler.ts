@@ -0,0 +1,116 @@
+import { messageHandlers, sendSignal } from "./communication";
+import { currentPluginId, runAsPlugin } from "./context";
+import { IMessage } from "./messages";
+import { MessageTypes } from "./messageTypes";
+
+const enum ScheduleOp {
+    SCHEDULE = 0,
+    CANCEL = 1,
+}
+
+/**
+ * Options used when scheduling a task.
+ */
+export interface IScheduleOptions {
+    /** Number of ticks between runs of a repeating task */
+    period?: number;
+    /**
+     * Messages, encoded using `encodeSignal`, which are handled on the main thread when the task is due.
+     * They are handled before the callback is called.
+     */
+    operations?: Buffer[];
+}
+
+/** Callback when a task is due. */
+export type TaskHandler = () => void;
+
+/** callback, whether the task repeats and the id of the plugin which scheduled the task */
+const tasks = new Map<number, [TaskHandler | undefined, boolean, number]>();
+let taskIndex = 1;
+
+messageHandlers.set(MessageTypes.TICK, (m: IMessage) => {
+    const b = m.data as Buffer;
+    for (let off = 0; off + 4 <= b.length; off += 4) {
+        const id = b.readUInt32BE(off);
+        const t = tasks.get(id);
+        if (!t) {
+            continue;
+        }
+        if (!t[1]) {
+            tasks.delete(id);
+        }
+        const handler = t[0];
+        if (handler) {
+            try {
+                runAsPlugin(t[2], handler);
+            } catch (e) {
+                // tslint:disable-next-line:no-console
+                console.error("node-spigot-bridge: scheduled task failed:", e);
+            }
+        }
+    }
+});
+
+/**
+ * Runs tasks aligned to server ticks.
+ */
+export class Scheduler {
+    /**
+     * Schedule a task.
+     * @param {number} delay number of ticks until the task is run the first time
+     * @param {function?} callback called when the task is due
+     * @param {object?} options period and operations of the task
+     * @returns {number} id of the task, which may be used to cancel it
+     */
+    public static schedule(delay: number, callback?: TaskHandler, options?: IScheduleOptions): number {
+        const id = taskIndex;
+        // tslint:disable-next-line:no-bitwise
+        taskIndex = (taskIndex + 1) >>> 0 || 1;
+        const period = options && options.period || 0;
+        const ops = options && options.operations || [];
+        const plugin = currentPluginId();
+        const head = Buffer.alloc(14);
+        head.writeUInt32BE(id, 0);
+        head.writeUInt32BE(Math.max(1, delay), 4);
+        head.writeUInt32BE(period, 8);
+        // the operations are accounted to this plugin when the task is due
+        head.writeUInt16BE(plugin, 12);
+        const b = Buffer.concat([ head, ...ops ]);
+        if (b.length >= 0x8000) {
+            throw new RangeError("Scheduled operations are too large in bytes.");
+        }
+        tasks.set(id, [callback, period > 0, plugin]);
+        sendSignal(MessageTypes.SCHEDULE, ScheduleOp.SCHEDULE, b);
+        return id;
+    }
+
+    /**
+     * Run a task once after a number of ticks.
+     */
+    public static runLater(delay: number, callback?: TaskHandler, operations?: Buffer[]): number {
+        return Scheduler.schedule(delay, callback, { operations });
+    }
+
+    /**
+     * Run a task every `period` ticks, the first time after `delay` ticks.
+     */
+    public static runTimer(delay: number, period: number, callback?: TaskHandler, operations?: Buffer[]): number {
+        return Scheduler.schedule(delay, callback, { operations, period });
+    }
+
+    /**
+     * Cancel scheduled tasks.
+     * @param {number[]} ids ids of the tasks
+     * @returns {Promise<void>} resolves when the request has been passed to the server
+     */
+    public static cancel(...ids: number[]): Promise<void> {
+        const b = Buffer.alloc(ids.length * 4);
+        ids.forEach((id, i) => {
+            tasks.delete(id);
+            b.writeUInt32BE(id, i * 4);
+        });
+        return sendSignal(MessageTypes.SCHEDULE, ScheduleOp.CANCEL, b);
+    }
+}
+
+export default Scheduler;
@@ -2,8 +2,11 @@
 
 import { promises as fs } from "fs";
 import { join } from "path";
+import { sendAsync, sendSignal } from "./communication";
+import { pluginId, runAsPlugin } from "./context";
+import { MessageTypes } from "./messageTypes";
 
-const { readFile, writeFile } = fs;
+const { readFile, rename, writeFile } = fs;
 
 /** A way to store data */
 export interface IStorageBackend {
@@ -11,6 +14,8 @@ export interface IStorageBackend {
     set(key: string, value: any): Promise<void>;
     /** Get stored data */
     get<T>(key: string): undefined | T | Promise<undefined | T>;
+    /** List stored keys starting with a prefix */
+    keys?(prefix?: string): Promise<string[]>;
 }
 
 /** An interface which is used to hold a storage backend and cache. */
@@ -23,6 +28,178 @@ export interface IBackendProxy {
     symbols?: any;
 }
 
+/** Maximum payload of a single `STORAGE_SET` frame */
+const MAX_FRAME = 0x7FFF;
+
+/**
+ * The file used by the JSON backend for a plugin.
+ */
+function jsonFileName(pluginName: string): string {
+    // tslint:disable-next-line:max-line-length
+    const fn = "backend." + pluginName.replace(/[^0-9a-zA-Z]/g, (s) => "-" + s.charCodeAt(0).toString(16)) + ".json";
+    return join(".config", fn);
+}
+
+/**
+ * Stores data in the java plugin, which keeps an append-only log per plugin.
+ *
+ * Values are fetched when they are requested and writes only send the changed values.
+ * Data from an earlier JSON backend file is moved over the first time the plugin uses its storage.
+ * Each stored entry must fit into a single frame, so this is not the default backend yet.
+ */
+class JavaStorageBackend implements IStorageBackend {
+    private readonly ns: Buffer;
+    private readonly pending = new Map<string, string | undefined>();
+    private flushing: Promise<void> | null = null;
+    private migrated: Promise<void> | null = null;
+    private versionStored: boolean = false;
+    private readonly pluginVersion: string;
+
+    public constructor(private readonly pluginName: string, pluginVersion: string) {
+        this.pluginVersion = JSON.stringify(pluginVersion);
+        const n = Buffer.from(pluginName, "utf8");
+        if (n.length > 0xFF) {
+            throw new RangeError("Plugin name is too large in bytes.");
+        }
+        this.ns = Buffer.concat([ Buffer.from([ n.length ]), n ]);
+    }
+
+    public set(key: string, value: any) {
+        this.pending.set(key, value === undefined ? undefined : JSON.stringify(value));
+        if (!this.versionStored) {
+            this.versionStored = true;
+            this.pending.set("lastStoreVersion", this.pluginVersion);
+        }
+        if (!this.flushing) {
+            // collect all writes made during this turn of the event loop, sent on behalf of the owning plugin
+            this.flushing = runAsPlugin(pluginId(this.pluginName), () => new Promise<void>((s) => setImmediate(s))
+                .then(() => this.migrate())
+                .then(() => {
+                    this.flushing = null;
+                    const entries = Array.from(this.pending);
+                    this.pending.clear();
+                    return this.write(entries);
+                }));
+        }
+        return this.flushing;
+    }
+
+    public get<T>(key: string): undefined | T | Promise<undefined | T> {
+        if (this.pending.has(key)) {
+            const v = this.pending.get(key);
+            return v === undefined ? undefined : JSON.parse(v);
+        }
+        return this.migrate()
+            .then(() => sendAsync<Buffer | undefined>(MessageTypes.STORAGE_GET,
+                Buffer.concat([ this.ns, Buffer.from(key, "utf8") ])))
+            .then((b) => b && b.length ? JSON.parse(b.toString("utf8")) : undefined);
+    }
+
+    public async keys(prefix: string = ""): Promise<string[]> {
+        await this.migrate();
+        const p = Buffer.from(prefix, "utf8");
+        // tslint:disable-next-line:no-bitwise
+        const head = Buffer.concat([ this.ns, Buffer.from([ p.length >> 8, p.length & 0xFF ]), p ]);
+        const ret: string[] = [];
+        let after = Buffer.alloc(0);
+        while (true) {
+            const b = await sendAsync<Buffer | undefined>(MessageTypes.STORAGE_SCAN, Buffer.concat([ head, after ]));
+            if (!b || !b.length) {
+                break;
+            }
+            let off = 0;
+            while (off < b.length) {
+                const l = b.readUInt16BE(off);
+                after = b.slice(off + 2, off + 2 + l);
+                ret.push(after.toString("utf8"));
+                off += 2 + l;
+            }
+        }
+        for (const [k, v] of this.pending) {
+            const i = ret.indexOf(k);
+            if (v === undefined && i !== -1) {
+                ret.splice(i, 1);
+            } else if (v !== undefined && i === -1 && k.startsWith(prefix)) {
+                ret.push(k);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Send entries as `STORAGE_SET` frames.
+     *
+     * All entries are checked before any frame is sent, so a batch is either sent completely or not at all.
+     * @param acknowledged whether to wait for java to reply that each frame has been stored
+     */
+    private write(entries: Array<[string, string | undefined]>, acknowledged: boolean = false): Promise<void> {
+        const records: Buffer[][] = [];
+        for (const [k, v] of entries) {
+            const kb = Buffer.from(k, "utf8");
+            const vb = v === undefined ? null : Buffer.from(v, "utf8");
+            if (this.ns.length + 6 + kb.length + (vb ? vb.length : 0) > MAX_FRAME) {
+                return Promise.reject(new RangeError("Stored value is too large in bytes: " + k));
+            }
+            const head = Buffer.alloc(6);
+            head.writeUInt16BE(kb.length, 0);
+            head.writeInt32BE(vb ? vb.length : -1, 2);
+            records.push(vb ? [ head, kb, vb ] : [ head, kb ]);
+        }
+        const sends: Array<Promise<any>> = [];
+        const send = (b: Buffer) => sends.push(acknowledged
+            ? sendAsync(MessageTypes.STORAGE_SET, b) : sendSignal(MessageTypes.STORAGE_SET, b));
+        let frame: Buffer[] = [ this.ns ];
+        let size = this.ns.length;
+        for (const r of records) {
+            const l = r.reduce((n, b) => n + b.length, 0);
+            if (size + l > MAX_FRAME) {
+                send(Buffer.concat(frame, size));
+                frame = [ this.ns ];
+                size = this.ns.length;
+            }
+            frame.push(...r);
+            size += l;
+        }
+        if (size !== this.ns.length) {
+            send(Buffer.concat(frame, size));
+        }
+        return Promise.all(sends).then(() => undefined);
+    }
+
+    /**
+     * Moves data from the JSON backend file, if any, into this storage.
+     *
+     * The file is renamed only after java acknowledged all of its entries.
+     * If moving fails the file is left in place and the next use of the storage tries again.
+     */
+    private migrate(): Promise<void> {
+        if (this.migrated) {
+            return this.migrated;
+        }
+        const file = jsonFileName(this.pluginName);
+        const migrated = this.migrated = readFile(file, "utf8").then((v) => {
+            const d = JSON.parse(v.replace(/^\s*\/\/.*$/m, ""));
+            const entries: Array<[string, string]> = [];
+            for (const k of Object.keys(d)) {
+                if (!this.pending.has(k)) {
+                    entries.push([k, JSON.stringify(d[k])]);
+                }
+            }
+            return this.write(entries, true).then(() => rename(file, file + ".migrated"));
+        }, (e) => {
+            if (e.code !== "ENOENT") {
+                throw e;
+            }
+        });
+        migrated.catch(() => {
+            if (this.migrated === migrated) {
+                this.migrated = null;
+            }
+        });
+        return migrated;
+    }
+}
+
 /**
  * Stores one JSON file per plugin.
  */
@@ -38,8 +215,7 @@ class JSONStorageBackend implements IStorageBackend {
     public constructor(pluginName: string, pluginVersion: string) {
         this.pluginVersion = JSON.stringify(pluginVersion);
         // tslint:disable-next-line:max-line-length
-        const fn = "backend." + pluginName.replace(/[^0-9a-zA-Z]/g, (s) => "-" + s.charCodeAt(0).toString(16)) + ".json";
-        this.file = join(".config", fn);
+        this.file = jsonFileName(pluginName);
     }
 
     public set(key: string, value: any) {
@@ -149,6 +325,13 @@ export function jsonStorageBackend(pluginName: string, pluginVersion: string): I
     return new JSONStorageBackend(pluginName, pluginVersion);
 }
 
+/**
+ * Stores data in the java plugin, which keeps an append-only log per plugin.
+ */
+export function javaStorageBackend(pluginName: string, pluginVersion: string): IStorageBackend {
+    return new JavaStorageBackend(pluginName, pluginVersion);
+}
+
 /**
  * Temporary storage which will never be stored at rest, a fresh storage is used when the plugin is reloaded.
  */
@@ -5,8 +5,11 @@ import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
+import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.defaults.PluginsCommand;
@@ -14,7 +17,9 @@ import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 
 public class BridgedCommand extends PluginsCommand {
-    public final boolean isSync;
+    public volatile boolean isSync;
+    /** milliseconds a sync call may block before a fallback result is used */
+    public final long deadline;
     public final JavaBridge bridge;
     public final NodeJs node;
     public final String tabcomplete;
@@ -23,12 +28,15 @@ public class BridgedCommand extends PluginsCommand {
         super(command);
         this.bridge = bridge;
         this.node = node;
-        if (cmd != null) {
+        if (cmd == null) {
             cmd = new YamlConfiguration();
         }
         // sync
         this.isSync = cmd.getBoolean("s", false);
 
+        // timeout
+        this.deadline = cmd.getLong("t", bridge.getConfig().getLong("sync.deadline", 50));
+
         // label
         String lbl = cmd.getString("l", null);
         if (lbl != null) {
@@ -63,6 +71,32 @@ public class BridgedCommand extends PluginsCommand {
         this.tabcomplete = cmd.getString("c", null);
     }
 
+    /**
+     * Wait for a reply until the deadline of this command, or the remaining budget of the tick if on the main thread.
+     * @return the reply or `null` if the deadline passed
+     */
+    private InputMessage awaitReply(CompletableFuture<InputMessage> f) {
+        final SyncWatchdog w = this.bridge.watchdog;
+        if (w == null || !Bukkit.isPrimaryThread()) {
+            return this.node.await(f, this.deadline);
+        }
+        final long remaining = w.remainingNanos();
+        if (remaining == 0) {
+            // the budget of this tick has been spent by other calls, which is not held against this command
+            w.skipped(this.getName());
+            return this.node.await(f, 0, TimeUnit.NANOSECONDS);
+        }
+        final long deadline = this.deadline * 1000000L;
+        final long t = System.nanoTime();
+        final InputMessage m = this.node.await(f, Math.min(deadline, remaining), TimeUnit.NANOSECONDS);
+        // a wait which was cut short by the budget of the tick is not a timeout of the command
+        if (w.record(this.getName(), System.nanoTime() - t, m == null && deadline <= remaining) && this.isSync) {
+            this.isSync = false;
+            this.bridge.getLogger().warning("Command " + this.getName() + " blocks the main thread too often and is now async");
+        }
+        return m;
+    }
+
     @Override
     public List<String> tabComplete(CommandSender sender, String alias, String[] args) {
         if (this.tabcomplete == null) {
@@ -87,12 +121,13 @@ public class BridgedCommand extends PluginsCommand {
                     sb.append(",\"p\":\"").append(((OfflinePlayer) sender).getUniqueId()).append("\"");
                 }
                 sb.append("}}");
-                byte[] b = this.node.sendString(MessageType.COMPLETE_COMMAND, sb.toString(), true).join().binaryValue;
+                InputMessage m = this.awaitReply(this.node.sendString(MessageType.COMPLETE_COMMAND, sb.toString(), true));
+                byte[] b = m == null ? null : m.binaryValue;
                 if (b != null && b.length != 0) {
                     YamlConfiguration r = this.bridge.parseJSON(new String(b, StandardCharsets.UTF_8));
                     return r.getStringList("r");
                 }
-            } catch (IOException | InvalidConfigurationException e) {
+            } catch (IOException | CompletionException | InvalidConfigurationException e) {
                 this.bridge.getLogger().log(Level.SEVERE, "Completion of command failed: " + e.toString(), e);
                 return new LinkedList<String>();
             }
@@ -123,12 +158,17 @@ public class BridgedCommand extends PluginsCommand {
             sb.append("}}");
             CompletableFuture<InputMessage> f = this.node.sendString(MessageType.EXECUTE_COMMAND, sb.toString(), this.isSync);
             if (f != null) {
-                Short b = f.join().shortValue;
+                InputMessage m = this.awaitReply(f);
+                if (m == null) {
+                    // the deadline passed, the command is still running in node.js
+                    return true;
+                }
+                Short b = m.shortValue;
                 if (b == null || b == 0) {
                     return false;
                 }
             }
-		} catch (IOException e) {
+		} catch (IOException | CompletionException e) {
             this.bridge.getLogger().log(Level.SEVERE, "Execution of command failed: " + e.toString(), e);
             return false;
 		}
@@ -0,0 +1,239 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandMap;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+
+/**
+ * Registers commands of node.js plugins in the command map of the server.
+ *
+ * `COMMANDS` messages from node.js have the operation as short value:
+ * - `0`: register `{"o": owning plugin, "c": [commands]}` where each command is as in `COMPLETE_COMMAND`
+ * - `1`: unregister all commands of the owning plugin given as the payload
+ *
+ * The server internals are looked up once. Commands are registered on the main thread
+ * and the command tree is sent to clients once per batch.
+ * All commands are unregistered when node.js restarts, the new process registers the commands of the plugins it loads.
+ */
+public class CommandRegistry {
+    private static final short OP_REGISTER = 0;
+    private static final short OP_UNREGISTER = 1;
+
+    private final JavaBridge bridge;
+    private final NodeJs node;
+
+    private MethodHandle commandMapGetter = null;
+    private MethodHandle knownCommandsGetter = null;
+    /** `CraftServer.syncCommands`, which is missing before 1.13 */
+    private MethodHandle syncCommands = null;
+    private boolean resolved = false;
+
+    /** registered commands by name, only accessed on the main thread */
+    private final HashMap<String, BridgedCommand> commands = new HashMap<String, BridgedCommand>();
+    /** names of registered commands by owning plugin, only accessed on the main thread */
+    private final HashMap<String, List<String>> owned = new HashMap<String, List<String>>();
+
+    public CommandRegistry(JavaBridge bridge, NodeJs node) {
+        this.bridge = bridge;
+        this.node = node;
+        // runs before the registrations of the new process, which are handled once it is active
+        node.addRestartListener(() -> bridge.getServer().getScheduler().runTask(bridge, this::unregisterAll));
+    }
+
+    /**
+     * Handle a message of type `COMPLETE_COMMAND`, which registers a single command, or `COMMANDS`.
+     * May be called from any thread.
+     */
+    public void handle(InputMessage m) {
+        final List<YamlConfiguration> cmds = new ArrayList<YamlConfiguration>();
+        final String owner;
+        try {
+            if (m.type == MessageType.COMPLETE_COMMAND) {
+                owner = "";
+                cmds.add(this.bridge.parseJSON(m.binaryValue));
+            } else if (m.shortValue != null && m.shortValue == OP_UNREGISTER) {
+                final String o = new String(m.binaryValue, StandardCharsets.UTF_8);
+                this.bridge.getServer().getScheduler().runTask(this.bridge, () -> this.unregister(o));
+                return;
+            } else if (m.shortValue != null && m.shortValue == OP_REGISTER) {
+                final YamlConfiguration batch = this.bridge.parseJSON(m.binaryValue);
+                owner = batch.getString("o", "");
+                for (Map<?, ?> c : batch.getMapList("c")) {
+                    final YamlConfiguration cmd = new YamlConfiguration();
+                    for (Map.Entry<?, ?> e : c.entrySet()) {
+                        cmd.set(String.valueOf(e.getKey()), e.getValue());
+                    }
+                    cmds.add(cmd);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown command operation " + m.shortValue);
+            }
+        } catch (InvalidConfigurationException | RuntimeException e) {
+            this.bridge.getLogger().log(Level.WARNING, "Failed to register some command", e);
+            return;
+        }
+        this.bridge.getServer().getScheduler().runTask(this.bridge, () -> this.register(owner, cmds));
+    }
+
+    /**
+     * Look up the server internals needed to change the command map.
+     */
+    private void resolve() throws ReflectiveOperationException {
+        if (this.resolved) {
+            return;
+        }
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final Field f = this.bridge.getServer().getClass().getDeclaredField("commandMap");
+        f.setAccessible(true);
+        this.commandMapGetter = lookup.unreflectGetter(f);
+
+        final CommandMap commandMap = (CommandMap) this.invoke(this.commandMapGetter);
+        for (Class<?> c = commandMap.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                final Field k = c.getDeclaredField("knownCommands");
+                k.setAccessible(true);
+                this.knownCommandsGetter = lookup.unreflectGetter(k);
+                break;
+            } catch (NoSuchFieldException e) {
+                continue;
+            }
+        }
+        try {
+            this.syncCommands = lookup.unreflect(this.bridge.getServer().getClass().getMethod("syncCommands"));
+        } catch (NoSuchMethodException e) {
+            this.syncCommands = null;
+        }
+        this.resolved = true;
+    }
+
+    private Object invoke(MethodHandle h) throws ReflectiveOperationException {
+        try {
+            return h.invoke(this.bridge.getServer());
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new ReflectiveOperationException(e);
+        }
+    }
+
+    /**
+     * Send the command tree to all clients.
+     */
+    private void sync() {
+        if (this.syncCommands == null) {
+            return;
+        }
+        try {
+            this.invoke(this.syncCommands);
+        } catch (ReflectiveOperationException e) {
+            this.bridge.getLogger().log(Level.WARNING, "Failed to send commands to players", e);
+            for (Player p : this.bridge.getServer().getOnlinePlayers()) {
+                p.updateCommands();
+            }
+        }
+    }
+
+    /**
+     * Register a batch of commands. Must be called on the main thread.
+     */
+    private void register(String owner, List<YamlConfiguration> cmds) {
+        final CommandMap commandMap;
+        try {
+            this.resolve();
+            commandMap = (CommandMap) this.invoke(this.commandMapGetter);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            this.bridge.getLogger().log(Level.WARNING, "Failed to register " + cmds.size() + " commands of " + owner, e);
+            return;
+        }
+        int added = 0;
+        for (YamlConfiguration cmd : cmds) {
+            final String command = cmd.getString("a", null);
+            if (command == null) {
+                continue;
+            }
+            if (this.commands.containsKey(command)) {
+                // the plugin which registered a name first keeps it
+                continue;
+            }
+            final BridgedCommand bc = new BridgedCommand(this.bridge, this.node, command, cmd);
+            commandMap.register(command, bc);
+            this.commands.put(command, bc);
+            this.owned.computeIfAbsent(owner, (o) -> new ArrayList<String>()).add(command);
+            added++;
+        }
+        if (added != 0) {
+            this.sync();
+        }
+    }
+
+    /**
+     * Unregister all commands of an owning plugin. Must be called on the main thread.
+     */
+    private void unregister(String owner) {
+        final List<String> names = this.owned.remove(owner);
+        if (names == null || names.isEmpty()) {
+            return;
+        }
+        this.remove(names);
+        this.sync();
+    }
+
+    /**
+     * Unregister all commands. Must be called on the main thread.
+     */
+    public void unregisterAll() {
+        if (this.commands.isEmpty()) {
+            return;
+        }
+        this.remove(new ArrayList<String>(this.commands.keySet()));
+        this.owned.clear();
+        this.sync();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void remove(List<String> names) {
+        final CommandMap commandMap;
+        final Map<String, Command> known;
+        try {
+            this.resolve();
+            commandMap = (CommandMap) this.invoke(this.commandMapGetter);
+            known = this.knownCommandsGetter == null ? null
+                : (Map<String, Command>) this.knownCommandsGetter.invoke(commandMap);
+        } catch (Throwable e) {
+            this.bridge.getLogger().log(Level.WARNING, "Failed to unregister " + names.size() + " commands", e);
+            return;
+        }
+        final Set<Command> removed = Collections.newSetFromMap(new IdentityHashMap<Command, Boolean>());
+        for (String name : names) {
+            final BridgedCommand bc = this.commands.remove(name);
+            if (bc != null) {
+                bc.unregister(commandMap);
+                removed.add(bc);
+            }
+        }
+        if (known != null) {
+            // the command map has entries for each alias and fallback prefix
+            for (Iterator<Command> it = known.values().iterator(); it.hasNext();) {
+                if (removed.contains(it.next())) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
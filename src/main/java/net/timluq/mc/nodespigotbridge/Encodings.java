@@ -1,6 +1,8 @@
 package net.timluq.mc.nodespigotbridge;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 
 @SuppressWarnings("unchecked")
@@ -83,6 +85,71 @@ public final class Encodings {
     }
 
     public static int leInt(byte[] data, int pos) {
-        return (((int) data[pos]) << 24) | ((((int) data[pos + 1]) & 0xFF) << 16) | ((((int) data[pos + 1]) & 0xFF) << 8) | (((int) data[pos + 1]) & 0xFF);
+        return (((int) data[pos]) << 24) | ((((int) data[pos + 1]) & 0xFF) << 16) | ((((int) data[pos + 2]) & 0xFF) << 8) | (((int) data[pos + 3]) & 0xFF);
+    }
+
+    /**
+     * Number of bits needed to store indices into a palette of `size` entries.
+     */
+    public static int paletteBits(int size) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+
+    /**
+     * Pack the lowest `bits` bits of each value as a continuous big endian bit stream.
+     */
+    public static byte[] packBits(int[] values, int bits) {
+        final byte[] out = new byte[(int) (((long) values.length * bits + 7) / 8)];
+        long pos = 0;
+        for (int v : values) {
+            for (int b = bits - 1; b >= 0; b--, pos++) {
+                if (((v >> b) & 1) != 0) {
+                    out[(int) (pos >> 3)] |= 0x80 >> (pos & 7);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Unpack values written by `packBits`, starting at byte `off` of `data`.
+     */
+    public static int[] unpackBits(byte[] data, int off, int bits, int count) {
+        final int[] out = new int[count];
+        long pos = (long) off * 8;
+        for (int i = 0; i < count; i++) {
+            int v = 0;
+            for (int b = 0; b < bits; b++, pos++) {
+                v = (v << 1) | ((data[(int) (pos >> 3)] >> (7 - (pos & 7))) & 1);
+            }
+            out[i] = v;
+        }
+        return out;
+    }
+
+    /**
+     * Write an unsigned variable length integer, seven bits per byte with the high bit set on all but the last byte.
+     */
+    public static void writeVarInt(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    /**
+     * Read an unsigned variable length integer written by `writeVarInt`.
+     */
+    public static int readVarInt(ByteBuffer in) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final byte b = in.get();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("Variable length integer is too long");
     }
 }
@@ -0,0 +1,335 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import org.bukkit.Location;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerRespawnEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.vehicle.VehicleMoveEvent;
+
+/**
+ * A grid of the positions of online players per world, answering spatial queries from node.js.
+ *
+ * Positions are updated from movement events,
+ * only moving a player between cells when it has crossed a cell border.
+ * Queries received during a tick are answered together in a single pass over the cells of each world.
+ *
+ * Run once per tick on the main thread.
+ */
+public class EntityIndex implements Runnable, Listener {
+    private static final int CELL_BITS = 4;
+
+    private static final int QUERY_RADIUS = 0;
+    private static final int QUERY_BOX = 1;
+    private static final int QUERY_NEAREST = 2;
+
+    /** size of a record in a reply: `[16 bytes uuid][f32 x][f32 y][f32 z]` */
+    private static final int RECORD = 28;
+    private static final int MAX_RECORDS = 0x7FFF / RECORD;
+
+    private static final class Entry {
+        final UUID uuid;
+        final byte[] uuidBytes;
+        String world = null;
+        long cell = 0;
+        double x;
+        double y;
+        double z;
+
+        Entry(UUID uuid) {
+            this.uuid = uuid;
+            this.uuidBytes = Encodings.fromUUID(uuid);
+        }
+
+        double distanceSquared(double x, double y, double z) {
+            final double dx = this.x - x, dy = this.y - y, dz = this.z - z;
+            return dx * dx + dy * dy + dz * dz;
+        }
+    }
+
+    private static final class Query {
+        final short reply;
+        final int kind;
+        final String world;
+        /** bounding box of the query */
+        final double x1, y1, z1, x2, y2, z2;
+        /** center and squared radius of radius and nearest queries */
+        final double cx, cy, cz, r2;
+        final int k;
+        final ArrayList<Entry> found = new ArrayList<Entry>();
+        /** farthest entry first, for nearest queries */
+        final PriorityQueue<Entry> nearest;
+
+        Query(short reply, byte[] b) {
+            this.reply = reply;
+            this.kind = b[0];
+            final int wLen = b[1] & 0xFF;
+            this.world = new String(b, 2, wLen, StandardCharsets.UTF_8);
+            final ByteBuffer d = ByteBuffer.wrap(b, 2 + wLen, b.length - 2 - wLen);
+            if (this.kind == QUERY_BOX) {
+                final double ax = d.getDouble(), ay = d.getDouble(), az = d.getDouble();
+                final double bx = d.getDouble(), by = d.getDouble(), bz = d.getDouble();
+                this.x1 = Math.min(ax, bx);
+                this.y1 = Math.min(ay, by);
+                this.z1 = Math.min(az, bz);
+                this.x2 = Math.max(ax, bx);
+                this.y2 = Math.max(ay, by);
+                this.z2 = Math.max(az, bz);
+                this.cx = this.cy = this.cz = this.r2 = 0;
+                this.k = MAX_RECORDS;
+                this.nearest = null;
+                return;
+            }
+            this.cx = d.getDouble();
+            this.cy = d.getDouble();
+            this.cz = d.getDouble();
+            double r;
+            if (this.kind == QUERY_NEAREST) {
+                this.k = Math.min(d.getShort() & 0xFFFF, MAX_RECORDS);
+                r = d.getDouble();
+                if (r <= 0) {
+                    r = Double.POSITIVE_INFINITY;
+                }
+                final double fx = this.cx, fy = this.cy, fz = this.cz;
+                this.nearest = new PriorityQueue<Entry>(Math.max(1, this.k),
+                    (a, c) -> Double.compare(c.distanceSquared(fx, fy, fz), a.distanceSquared(fx, fy, fz)));
+            } else if (this.kind == QUERY_RADIUS) {
+                this.k = MAX_RECORDS;
+                r = d.getDouble();
+                this.nearest = null;
+            } else {
+                throw new IllegalArgumentException("Unknown entity query " + this.kind);
+            }
+            this.r2 = r * r;
+            this.x1 = this.cx - r;
+            this.y1 = this.cy - r;
+            this.z1 = this.cz - r;
+            this.x2 = this.cx + r;
+            this.y2 = this.cy + r;
+            this.z2 = this.cz + r;
+        }
+
+        boolean overlaps(long cell) {
+            final double minX = (double) ((int) (cell >> 32) << CELL_BITS);
+            final double minZ = (double) ((int) cell << CELL_BITS);
+            final double size = 1 << CELL_BITS;
+            return this.x2 >= minX && this.x1 < minX + size && this.z2 >= minZ && this.z1 < minZ + size;
+        }
+
+        void test(Entry e) {
+            if (e.x < this.x1 || e.x > this.x2 || e.y < this.y1 || e.y > this.y2 || e.z < this.z1 || e.z > this.z2) {
+                return;
+            }
+            if (this.kind == QUERY_BOX) {
+                if (this.found.size() < this.k) {
+                    this.found.add(e);
+                }
+                return;
+            }
+            final double d = e.distanceSquared(this.cx, this.cy, this.cz);
+            if (d > this.r2) {
+                return;
+            }
+            if (this.kind == QUERY_RADIUS) {
+                if (this.found.size() < this.k) {
+                    this.found.add(e);
+                }
+            } else if (this.nearest.size() < this.k) {
+                this.nearest.add(e);
+            } else if (this.k > 0 && d < this.nearest.peek().distanceSquared(this.cx, this.cy, this.cz)) {
+                this.nearest.poll();
+                this.nearest.add(e);
+            }
+        }
+    }
+
+    private final JavaBridge bridge;
+    private final NodeJs node;
+
+    private final HashMap<UUID, Entry> entries = new HashMap<UUID, Entry>();
+    /** world name to cell to entries */
+    private final HashMap<String, HashMap<Long, ArrayList<Entry>>> worlds = new HashMap<String, HashMap<Long, ArrayList<Entry>>>();
+    private final ConcurrentLinkedQueue<Query> queries = new ConcurrentLinkedQueue<Query>();
+
+    public EntityIndex(JavaBridge bridge, NodeJs node) {
+        this.bridge = bridge;
+        this.node = node;
+        // players which are online when the plugin is enabled do not join
+        for (Player p : bridge.getServer().getOnlinePlayers()) {
+            this.update(p.getUniqueId(), p.getLocation());
+        }
+    }
+
+    /**
+     * Handle a message of type `ENTITY_QUERY`. May be called from any thread.
+     *
+     * The payload is `[u8 kind][u8 world length][world]` followed by, for each kind:
+     * - `0` radius: `[f64 x][f64 y][f64 z][f64 radius]`
+     * - `1` box: `[f64 x1][f64 y1][f64 z1][f64 x2][f64 y2][f64 z2]`
+     * - `2` nearest: `[f64 x][f64 y][f64 z][u16 count][f64 max distance, 0 for any distance]`
+     *
+     * The reply is a sequence of `[16 bytes uuid][f32 x][f32 y][f32 z]`, nearest first for nearest queries.
+     */
+    public void handle(InputMessage m) {
+        if (m.reply == null) {
+            return;
+        }
+        try {
+            this.queries.add(new Query(m.reply, m.binaryValue));
+        } catch (RuntimeException e) {
+            this.bridge.getLogger().log(Level.WARNING, "Invalid ENTITY_QUERY message", e);
+            try {
+                this.node.sendReplyError(m.reply, e);
+            } catch (IOException e1) {
+                this.bridge.getLogger().log(Level.SEVERE, "Failed to send reply (" + String.valueOf(m.reply) + ") to: ENTITY_QUERY", e1);
+            }
+        }
+    }
+
+    private static long cell(double x, double z) {
+        return ((long) ((int) Math.floor(x) >> CELL_BITS) << 32) | (((int) Math.floor(z) >> CELL_BITS) & 0xFFFFFFFFL);
+    }
+
+    private void remove(Entry e) {
+        if (e.world == null) {
+            return;
+        }
+        final HashMap<Long, ArrayList<Entry>> cells = this.worlds.get(e.world);
+        final ArrayList<Entry> c = cells.get(e.cell);
+        c.remove(e);
+        if (c.isEmpty()) {
+            cells.remove(e.cell);
+        }
+        e.world = null;
+    }
+
+    private void update(UUID player, Location l) {
+        if (l == null || l.getWorld() == null) {
+            return;
+        }
+        Entry e = this.entries.get(player);
+        if (e == null) {
+            this.entries.put(player, e = new Entry(player));
+        }
+        final String world = l.getWorld().getName();
+        e.x = l.getX();
+        e.y = l.getY();
+        e.z = l.getZ();
+        final long cell = cell(e.x, e.z);
+        if (cell == e.cell && world.equals(e.world)) {
+            return;
+        }
+        this.remove(e);
+        e.world = world;
+        e.cell = cell;
+        this.worlds.computeIfAbsent(world, (w) -> new HashMap<Long, ArrayList<Entry>>())
+            .computeIfAbsent(cell, (c) -> new ArrayList<Entry>(4)).add(e);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        this.update(event.getPlayer().getUniqueId(), event.getPlayer().getLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        this.update(event.getPlayer().getUniqueId(), event.getTo());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        this.update(event.getPlayer().getUniqueId(), event.getTo());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerRespawn(PlayerRespawnEvent event) {
+        this.update(event.getPlayer().getUniqueId(), event.getRespawnLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onVehicleMove(VehicleMoveEvent event) {
+        // players riding a vehicle do not move themselves
+        for (Entity passenger : event.getVehicle().getPassengers()) {
+            if (passenger instanceof Player) {
+                this.update(passenger.getUniqueId(), event.getTo());
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        final Entry e = this.entries.remove(event.getPlayer().getUniqueId());
+        if (e != null) {
+            this.remove(e);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (this.queries.isEmpty()) {
+            return;
+        }
+        final HashMap<String, ArrayList<Query>> byWorld = new HashMap<String, ArrayList<Query>>();
+        Query q;
+        while ((q = this.queries.poll()) != null) {
+            byWorld.computeIfAbsent(q.world, (w) -> new ArrayList<Query>()).add(q);
+        }
+        for (Map.Entry<String, ArrayList<Query>> w : byWorld.entrySet()) {
+            final HashMap<Long, ArrayList<Entry>> cells = this.worlds.get(w.getKey());
+            if (cells == null) {
+                continue;
+            }
+            final ArrayList<Query> qs = w.getValue();
+            for (Map.Entry<Long, ArrayList<Entry>> c : cells.entrySet()) {
+                final long cell = c.getKey();
+                for (Query query : qs) {
+                    if (query.overlaps(cell)) {
+                        for (Entry e : c.getValue()) {
+                            query.test(e);
+                        }
+                    }
+                }
+            }
+            for (Query query : qs) {
+                if (query.nearest != null) {
+                    while (!query.nearest.isEmpty()) {
+                        query.found.add(query.nearest.poll());
+                    }
+                    // the queue is farthest first
+                    Collections.reverse(query.found);
+                }
+            }
+        }
+        for (ArrayList<Query> qs : byWorld.values()) {
+            for (Query query : qs) {
+                final ByteBuffer r = ByteBuffer.allocate(query.found.size() * RECORD);
+                for (Entry e : query.found) {
+                    r.put(e.uuidBytes).putFloat((float) e.x).putFloat((float) e.y).putFloat((float) e.z);
+                }
+                try {
+                    this.node.sendReplyBytes(query.reply, r.array());
+                } catch (IOException e) {
+                    this.bridge.getLogger().log(Level.SEVERE, "Failed to send reply (" + String.valueOf(query.reply) + ") to: ENTITY_QUERY", e);
+                }
+            }
+        }
+    }
+}
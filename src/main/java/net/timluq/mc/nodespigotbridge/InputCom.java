@@ -21,59 +21,53 @@ public class InputCom extends Thread implements Runnable {
 	@Override
 	public void run() {
         final byte[] b = new byte[65536];
+        // the first `rc` bytes of `b` have been read but not parsed yet
         int rc = 0;
-        int rl = 1;
 		try {
             while (!Thread.interrupted()) {
                 int r = this.stream.read(b, rc, 65536 - rc);
                 if (r == -1) {
                     break;
                 }
-                bridge.getLogger().info("received " + r + " bytes of input");
                 rc += r;
-                while (rc >= rl) {
-                    boolean hasShortData = (b[0] & 0x20) != 0;
-                    boolean hasBinaryData = (b[0] & 0x40) != 0;
-                    boolean doReply = (b[0] & 0x80) != 0;
+                int pos = 0;
+                while (pos < rc) {
+                    final int t = b[pos];
+                    boolean hasShortData = (t & 0x20) != 0;
+                    boolean hasBinaryData = (t & 0x40) != 0;
+                    boolean doReply = (t & 0x80) != 0;
                     int neededLength = 1;
                     int binLen = 0;
                     if (hasShortData) {
                         neededLength += 2;
                     }
                     if (hasBinaryData) {
-                        if (rc - 2 >= neededLength) {
-                            binLen = ((((int) b[neededLength]) & 0xFF) << 8) | (((int) b[neededLength + 1]) & 0xFF);
-                            neededLength += binLen;
+                        if (rc - pos < neededLength + 2) {
+                            break;
                         }
-                        neededLength += 2;
+                        binLen = ((((int) b[pos + neededLength]) & 0xFF) << 8) | (((int) b[pos + neededLength + 1]) & 0xFF);
+                        neededLength += 2 + binLen;
                     }
                     if (doReply) {
                         neededLength += 2;
                     }
-                    if (rc < neededLength) {
-                        rl = neededLength;
-                        bridge.getLogger().info("total received " + rc + " is less than expected " + rl);
+                    if (rc - pos < neededLength) {
                         break;
                     }
-                    rl = 1;
-                    InputMessage m = new InputMessage(MessageType.fromInt(b[0] & 0x1F));
+                    InputMessage m = new InputMessage(MessageType.fromInt(t & 0x1F));
                     if (hasShortData) {
-                        m.shortValue = (short) (((((int) b[1]) & 0xFF) << 8) | (((int) b[2]) & 0xFF));
+                        m.shortValue = (short) (((((int) b[pos + 1]) & 0xFF) << 8) | (((int) b[pos + 2]) & 0xFF));
                     }
                     if (hasBinaryData) {
                         m.binaryValue = new byte[binLen];
                         if (binLen != 0) {
-                            System.arraycopy(b, hasShortData ? 5 : 3, m.binaryValue, 0, binLen);
+                            System.arraycopy(b, pos + (hasShortData ? 5 : 3), m.binaryValue, 0, binLen);
                         }
                     }
                     if (doReply) {
-                        m.reply = (short) (((((int) b[neededLength - 2]) & 0xFF) << 8) | (((int) b[neededLength - 1]) & 0xFF));
-                    }
-                    rc -= neededLength;
-                    if (rc != 0) {
-                        System.arraycopy(b, neededLength, b, 0, rc);
+                        m.reply = (short) (((((int) b[pos + neededLength - 2]) & 0xFF) << 8) | (((int) b[pos + neededLength - 1]) & 0xFF));
                     }
-                    bridge.getLogger().info("triggering message of type " + String.valueOf(m.type));
+                    pos += neededLength;
                     try {
                         this.consumer.accept(m);
                     } catch (Exception ex) {
@@ -86,6 +80,11 @@ public class InputCom extends Thread implements Runnable {
                         ex.printStackTrace();
                     }
                 }
+                // the incomplete frame at the end is moved to the front once per read
+                rc -= pos;
+                if (pos != 0 && rc != 0) {
+                    System.arraycopy(b, pos, b, 0, rc);
+                }
             }
 		} catch (IOException e) {
             e.printStackTrace();
@@ -5,6 +5,8 @@ public class InputMessage {
     public byte[] binaryValue = null;
     public Short shortValue = null;
     public Short reply = null;
+    /** id of the node.js plugin which sent the message, `0` for the bridge itself */
+    public short plugin = 0;
 
     public InputMessage(MessageType type) {
         this.type = type;
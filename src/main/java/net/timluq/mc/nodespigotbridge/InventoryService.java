@@ -0,0 +1,140 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.logging.Level;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+/**
+ * Reads and writes player inventories using `ItemCodec`.
+ *
+ * The payload of `INVENTORY` starts with `[16 bytes uuid]` and the short value is the operation:
+ * - `0` get: replies with `[varint slot count][item]...` for the whole inventory
+ * - `1` set: `[varint slot][item]...` of the slots to change
+ * - `2` diff: replies with `[varint slot][item]...` of the slots which changed since the last get or diff
+ *
+ * Inventories are accessed on the main thread.
+ */
+public class InventoryService implements Listener {
+    private static final short OP_GET = 0;
+    private static final short OP_SET = 1;
+    private static final short OP_DIFF = 2;
+
+    /** largest payload of a reply, which is sent with a u16 length */
+    private static final int MAX_REPLY = 0xFFFF;
+
+    private final JavaBridge bridge;
+    private final NodeJs node;
+    private final ItemCodec codec;
+
+    /** the contents last sent to node.js for each player, only accessed on the main thread */
+    private final HashMap<UUID, ItemStack[]> sent = new HashMap<UUID, ItemStack[]>();
+
+    public InventoryService(JavaBridge bridge, NodeJs node, ItemCodec codec) {
+        this.bridge = bridge;
+        this.node = node;
+        this.codec = codec;
+        node.addRestartListener(() -> bridge.getServer().getScheduler().runTask(bridge, () -> this.sent.clear()));
+    }
+
+    /**
+     * Handle a message of type `INVENTORY`. May be called from any thread.
+     */
+    public void handle(final InputMessage m) {
+        this.bridge.getServer().getScheduler().runTask(this.bridge, () -> {
+            try {
+                final UUID uuid = Encodings.getUUID(m.binaryValue);
+                final Player p = this.bridge.getServer().getPlayer(uuid);
+                if (p == null) {
+                    throw new IllegalArgumentException("No online player with UUID " + uuid);
+                }
+                final PlayerInventory inv = p.getInventory();
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                if (m.shortValue == OP_GET) {
+                    final ItemStack[] contents = inv.getContents();
+                    Encodings.writeVarInt(out, contents.length);
+                    for (ItemStack item : contents) {
+                        this.codec.encode(out, item);
+                    }
+                    checkSize(out);
+                    this.sent.put(uuid, copy(contents));
+                } else if (m.shortValue == OP_DIFF) {
+                    final ItemStack[] contents = inv.getContents();
+                    final ItemStack[] prev = this.sent.get(uuid);
+                    for (int i = 0; i < contents.length; i++) {
+                        if (prev == null || i >= prev.length || !this.codec.same(prev[i], contents[i])) {
+                            Encodings.writeVarInt(out, i);
+                            this.codec.encode(out, contents[i]);
+                        }
+                    }
+                    checkSize(out);
+                    this.sent.put(uuid, copy(contents));
+                } else if (m.shortValue == OP_SET) {
+                    final ByteBuffer in = ByteBuffer.wrap(m.binaryValue, 16, m.binaryValue.length - 16);
+                    final ItemStack[] prev = this.sent.get(uuid);
+                    while (in.hasRemaining()) {
+                        final int slot = Encodings.readVarInt(in);
+                        final ItemStack item = this.codec.decode(in);
+                        inv.setItem(slot, item);
+                        if (prev != null && slot < prev.length) {
+                            // node.js already knows about this change
+                            prev[slot] = item == null ? null : item.clone();
+                        }
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unknown inventory operation " + m.shortValue);
+                }
+                if (m.reply != null) {
+                    if (out.size() == 0) {
+                        this.node.sendReplySignal(m.reply);
+                    } else {
+                        this.node.sendReplyBytes(m.reply, out.toByteArray());
+                    }
+                }
+            } catch (IOException e) {
+                this.bridge.getLogger().log(Level.SEVERE, "Failed to send reply (" + String.valueOf(m.reply) + ") to: INVENTORY", e);
+            } catch (RuntimeException e) {
+                this.bridge.getLogger().log(Level.WARNING, "INVENTORY request failed", e);
+                if (m.reply != null) {
+                    try {
+                        this.node.sendReplyError(m.reply, e);
+                    } catch (IOException e1) {
+                        this.bridge.getLogger().log(Level.SEVERE, "Failed to send reply (" + String.valueOf(m.reply) + ") to: INVENTORY", e1);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Fail a reply which does not fit into a single frame, before node.js is assumed to know the contents.
+     */
+    private static void checkSize(ByteArrayOutputStream out) {
+        if (out.size() > MAX_REPLY) {
+            throw new IllegalArgumentException("Inventory of " + out.size() + " bytes is too large to send");
+        }
+    }
+
+    private static ItemStack[] copy(ItemStack[] contents) {
+        final ItemStack[] r = new ItemStack[contents.length];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = contents[i] == null ? null : contents[i].clone();
+        }
+        return r;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        this.sent.remove(event.getPlayer().getUniqueId());
+    }
+}
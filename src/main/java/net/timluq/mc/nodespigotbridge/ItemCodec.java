@@ -0,0 +1,178 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.Damageable;
+import org.bukkit.inventory.meta.ItemMeta;
+
+/**
+ * Binary encoding of item stacks.
+ *
+ * Materials are referred to by their index in a table which is sent to node.js once, with `ENABLE`.
+ * An item is `[varint material index + 1][varint amount]` followed by optional tagged sections
+ * `[u8 tag][varint length][data]` and ends with the tag `0`. An empty slot is a single `0`.
+ */
+public final class ItemCodec {
+    public static final int TAG_END = 0;
+    public static final int TAG_DAMAGE = 1;
+    public static final int TAG_NAME = 2;
+    public static final int TAG_LORE = 3;
+    public static final int TAG_ENCHANTMENTS = 4;
+    public static final int TAG_UNBREAKABLE = 5;
+
+    private final Material[] materials;
+    private final EnumMap<Material, Integer> ids = new EnumMap<Material, Integer>(Material.class);
+
+    public ItemCodec() {
+        final ArrayList<Material> ms = new ArrayList<Material>();
+        for (Material m : Material.values()) {
+            if (!m.isLegacy()) {
+                this.ids.put(m, ms.size());
+                ms.add(m);
+            }
+        }
+        this.materials = ms.toArray(new Material[ms.size()]);
+    }
+
+    /**
+     * The material table as `[u16 length][name]...` in index order.
+     */
+    public byte[] materialTable() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Material m : this.materials) {
+            writeString(out, m.name());
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        final byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.write(b.length >> 8);
+        out.write(b.length);
+        out.write(b, 0, b.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        final int len = in.getShort() & 0xFFFF;
+        final String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+
+    private static void writeSection(ByteArrayOutputStream out, int tag, ByteArrayOutputStream section) {
+        out.write(tag);
+        Encodings.writeVarInt(out, section.size());
+        final byte[] b = section.toByteArray();
+        out.write(b, 0, b.length);
+    }
+
+    public void encode(ByteArrayOutputStream out, ItemStack item) {
+        final Integer id = item == null ? null : this.ids.get(item.getType());
+        if (id == null || item.getType() == Material.AIR) {
+            out.write(0);
+            return;
+        }
+        Encodings.writeVarInt(out, id + 1);
+        Encodings.writeVarInt(out, item.getAmount());
+        if (item.hasItemMeta()) {
+            final ItemMeta meta = item.getItemMeta();
+            final ByteArrayOutputStream s = new ByteArrayOutputStream();
+            if (meta instanceof Damageable && ((Damageable) meta).hasDamage()) {
+                Encodings.writeVarInt(s, ((Damageable) meta).getDamage());
+                writeSection(out, TAG_DAMAGE, s);
+                s.reset();
+            }
+            if (meta.hasDisplayName()) {
+                writeString(s, meta.getDisplayName());
+                writeSection(out, TAG_NAME, s);
+                s.reset();
+            }
+            if (meta.hasLore()) {
+                for (String l : meta.getLore()) {
+                    writeString(s, l);
+                }
+                writeSection(out, TAG_LORE, s);
+                s.reset();
+            }
+            final Map<Enchantment, Integer> enchants = meta.getEnchants();
+            if (!enchants.isEmpty()) {
+                for (Map.Entry<Enchantment, Integer> e : enchants.entrySet()) {
+                    writeString(s, e.getKey().getKey().getKey());
+                    Encodings.writeVarInt(s, e.getValue());
+                }
+                writeSection(out, TAG_ENCHANTMENTS, s);
+                s.reset();
+            }
+            if (meta.isUnbreakable()) {
+                writeSection(out, TAG_UNBREAKABLE, s);
+            }
+        }
+        out.write(TAG_END);
+    }
+
+    public ItemStack decode(ByteBuffer in) {
+        final int id = Encodings.readVarInt(in);
+        if (id == 0) {
+            return null;
+        }
+        final ItemStack item = new ItemStack(this.materials[id - 1], Encodings.readVarInt(in));
+        ItemMeta meta = null;
+        int tag;
+        while ((tag = in.get() & 0xFF) != TAG_END) {
+            final int len = Encodings.readVarInt(in);
+            final int end = in.position() + len;
+            if (meta == null) {
+                meta = item.getItemMeta();
+            }
+            if (tag == TAG_DAMAGE && meta instanceof Damageable) {
+                ((Damageable) meta).setDamage(Encodings.readVarInt(in));
+            } else if (tag == TAG_NAME) {
+                meta.setDisplayName(readString(in));
+            } else if (tag == TAG_LORE) {
+                final List<String> lore = new ArrayList<String>();
+                while (in.position() < end) {
+                    lore.add(readString(in));
+                }
+                meta.setLore(lore);
+            } else if (tag == TAG_ENCHANTMENTS) {
+                while (in.position() < end) {
+                    final Enchantment e = Enchantment.getByKey(NamespacedKey.minecraft(readString(in)));
+                    final int level = Encodings.readVarInt(in);
+                    if (e != null) {
+                        meta.addEnchant(e, level, true);
+                    }
+                }
+            } else if (tag == TAG_UNBREAKABLE) {
+                meta.setUnbreakable(true);
+            }
+            // unknown sections are skipped
+            in.position(end);
+        }
+        if (meta != null) {
+            item.setItemMeta(meta);
+        }
+        return item;
+    }
+
+    /**
+     * Whether two items would be encoded the same.
+     */
+    public boolean same(ItemStack a, ItemStack b) {
+        final boolean ea = a == null || a.getType() == Material.AIR;
+        final boolean eb = b == null || b.getType() == Material.AIR;
+        if (ea || eb) {
+            return ea == eb;
+        }
+        return a.equals(b);
+    }
+}
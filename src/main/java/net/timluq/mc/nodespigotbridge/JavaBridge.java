@@ -4,35 +4,32 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
-import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.Server;
-import org.bukkit.command.CommandMap;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
-import org.bukkit.permissions.PermissionAttachment;
 import org.bukkit.permissions.PermissionAttachmentInfo;
 import org.bukkit.plugin.java.JavaPlugin;
 
 public class JavaBridge extends JavaPlugin {
 
     protected NodeJs node = null;
-
-    @SuppressWarnings("deprecation")
-    protected CompletableFuture<OfflinePlayer> getOfflinePlayer(final String name) {
-        return CompletableFuture.supplyAsync(() -> {
-            return this.getServer().getOfflinePlayer(name);
-        });
-    }
+    protected PlayerResolver playerResolver = null;
+    protected SyncWatchdog watchdog = null;
+    protected StorageService storage = null;
+    protected TickScheduler scheduler = null;
+    protected RegionService regions = null;
+    protected EntityIndex entities = null;
+    protected InventoryService inventories = null;
+    protected UiService ui = null;
+    protected CommandRegistry commands = null;
+    protected PluginAccounting accounting = null;
+    protected PermissionService permissions = null;
 
     @Override
     public void onEnable() {
@@ -41,29 +38,80 @@ public class JavaBridge extends JavaPlugin {
         // set defaults
         config.addDefault("directory", "node-plugins");
         config.addDefault("executable", "node");
+        config.addDefault("standby", true);
+        config.addDefault("resolver.threads", 2);
+        config.addDefault("resolver.queue", 256);
+        config.addDefault("resolver.ttl", 600);
+        config.addDefault("resolver.negative-ttl", 60);
+        config.addDefault("sync.deadline", 50);
+        config.addDefault("sync.tick-budget", 25);
+        config.addDefault("sync.demote-after", 0);
+        config.addDefault("storage.sync-interval", 1000);
+        config.addDefault("region.tick-budget", 5);
+        config.addDefault("region.max-blocks", 4194304);
+        config.addDefault("limits.mode", "defer");
+        config.addDefault("limits.queue", 1024);
+        config.addDefault("limits.burst", 1.0);
 
         config.options().copyDefaults(true);
         this.saveConfig();
 
         getLogger().info("onEnable is called!");
 
+        final PlayerResolver resolver = this.playerResolver = new PlayerResolver(this,
+            config.getInt("resolver.threads", 2), config.getInt("resolver.queue", 256),
+            config.getLong("resolver.ttl", 600) * 1000, config.getLong("resolver.negative-ttl", 60) * 1000);
+        this.getServer().getPluginManager().registerEvents(resolver, this);
+
+        this.watchdog = new SyncWatchdog(this, config.getLong("sync.tick-budget", 25), config.getInt("sync.demote-after", 0));
+        this.getServer().getScheduler().runTaskTimer(this, this.watchdog, 1, 1);
+
+        final StorageService storage = this.storage = new StorageService(this,
+            new File(config.getString("directory"), ".config"), config.getLong("storage.sync-interval", 1000));
+
         try {
             final NodeJs node = this.node = this.startNode();
+            final TickScheduler scheduler = this.scheduler = new TickScheduler(this, node);
+            this.getServer().getScheduler().runTaskTimer(this, scheduler, 1, 1);
+            final RegionService regions = this.regions = new RegionService(this, node,
+                config.getLong("region.tick-budget", 5), config.getLong("region.max-blocks", 4194304));
+            this.getServer().getScheduler().runTaskTimer(this, regions, 1, 1);
+            final EntityIndex entities = this.entities = new EntityIndex(this, node);
+            this.getServer().getPluginManager().registerEvents(entities, this);
+            this.getServer().getScheduler().runTaskTimer(this, entities, 1, 1);
+            final ItemCodec items = new ItemCodec();
+            node.setEnableData(items.materialTable());
+            final InventoryService inventories = this.inventories = new InventoryService(this, node, items);
+            this.getServer().getPluginManager().registerEvents(inventories, this);
+            final UiService ui = this.ui = new UiService(this, node);
+            this.getServer().getPluginManager().registerEvents(ui, this);
+            this.getServer().getScheduler().runTaskTimer(this, ui, 1, 1);
+            final CommandRegistry commands = this.commands = new CommandRegistry(this, node);
+            final PluginAccounting accounting = this.accounting = new PluginAccounting(this, node, config.getConfigurationSection("limits"));
+            node.setAccounting(accounting);
+            this.getServer().getScheduler().runTaskTimer(this, accounting, 1, 1);
+            final PermissionService permissions = this.permissions = new PermissionService(this);
+            this.getServer().getPluginManager().registerEvents(permissions, this);
+            this.getServer().getScheduler().runTaskTimer(this, permissions, 1, 1);
             node.start((InputMessage m) -> {
-                this.getLogger().info("Received message of type: " + String.valueOf(m.type));
-                if (m.type == MessageType.COMPLETE_COMMAND) {
-                    YamlConfiguration c;
-					try {
-						c = this.parseJSON(m.binaryValue);
-                        try {
-                            this.registerCommand(c);
-                        } catch (NoSuchFieldException | SecurityException | IllegalArgumentException
-                                | IllegalAccessException e) {
-                            this.getLogger().log(Level.WARNING, "Failed to register command: " + String.valueOf(c.getString("a", null)), e);
-                        }
-					} catch (InvalidConfigurationException e1) {
-                        this.getLogger().log(Level.WARNING, "Failed to register some command", e1);
-                    }
+                if (m.type == MessageType.COMPLETE_COMMAND || m.type == MessageType.COMMANDS) {
+                    commands.handle(m);
+                    return;
+                } else if (m.type == MessageType.STORAGE_GET || m.type == MessageType.STORAGE_SET || m.type == MessageType.STORAGE_SCAN) {
+                    storage.handle(node, m);
+                    return;
+                } else if (m.type == MessageType.SCHEDULE) {
+                    scheduler.handle(m);
+                    return;
+                } else if (m.type == MessageType.REGION_READ || m.type == MessageType.REGION_WRITE) {
+                    regions.handle(m);
+                    return;
+                } else if (m.type == MessageType.ENTITY_QUERY) {
+                    entities.handle(m);
+                } else if (m.type == MessageType.INVENTORY) {
+                    inventories.handle(m);
+                } else if (m.type == MessageType.UI) {
+                    ui.handle(m);
                     return;
                 } else if (m.type == MessageType.GET_PLAYER) {
                     if (m.reply == null) {
@@ -83,11 +131,12 @@ public class JavaBridge extends JavaPlugin {
 							}
                         } else {
                             // getting an OfflinePlayer by name may complete only after a network lookup
-                            // do this work in another thread
-                            this.getOfflinePlayer(name).thenAcceptAsync((OfflinePlayer op) -> {
+                            // the resolver does this work in another thread
+                            resolver.resolve(name).whenComplete((UUID offuuid, Throwable err) -> {
                                 try {
-                                    UUID offuuid = op == null ? null : op.getUniqueId();
-                                    if (offuuid != null) {
+                                    if (err != null) {
+                                        node.sendReplyError(m.reply, err instanceof Exception ? (Exception) err : new RuntimeException(err));
+                                    } else if (offuuid != null) {
                                         node.sendReplyString(m.reply, offuuid.toString());
                                     } else {
                                         node.sendReplySignal(m.reply);
@@ -169,19 +218,15 @@ public class JavaBridge extends JavaPlugin {
                             p.setHealthScale(Encodings.leShort(m.binaryValue, 16) / 100.0);
                         } else if (f == PlayerField.LEVEL) {
                             p.setLevel(Encodings.leShort(m.binaryValue, 16));
-                        } else if (f == PlayerField.PERMISSIONS || f == PlayerField.PERMISSIONS_MATCHING) {
-                            final int off = f == PlayerField.PERMISSIONS ? 16 : 20;
+                        } else if (f == PlayerField.PERMISSIONS || f == PlayerField.PERMISSIONS_MATCHING || f == PlayerField.PERMISSIONS_REVOKE) {
+                            final int off = f == PlayerField.PERMISSIONS_MATCHING ? 20 : 16;
                             final String[] perms = new String(m.binaryValue, off, m.binaryValue.length - off, StandardCharsets.UTF_8).split(",");
-                            int r = 0;
-                            PermissionAttachment att = f == PlayerField.PERMISSIONS ? p.addAttachment(this) : p.addAttachment(this, Encodings.leInt(m.binaryValue, 16));
-                            for (int i = 0; i < perms.length; i++) {
-                                if (!p.hasPermission(perms[i])) {
-                                    att.setPermission(perms[i], true);
-                                    r++;
-                                }
-                            }
-                            if (r == 0) {
-                                p.removeAttachment(att);
+                            if (f == PlayerField.PERMISSIONS) {
+                                permissions.grant(p.getUniqueId(), perms);
+                            } else if (f == PlayerField.PERMISSIONS_MATCHING) {
+                                permissions.grant(p.getUniqueId(), perms, Encodings.leInt(m.binaryValue, 16));
+                            } else {
+                                permissions.revoke(p.getUniqueId(), perms);
                             }
                         } else if (m.reply == null) {
                             return;
@@ -236,6 +281,18 @@ public class JavaBridge extends JavaPlugin {
                 this.getLogger().log(Level.SEVERE, "Failed to wait on NodeJs.stop", e);
 			}
         }
+        if (this.commands != null) {
+            this.commands.unregisterAll();
+            this.commands = null;
+        }
+        if (this.storage != null) {
+            this.storage.close();
+            this.storage = null;
+        }
+        if (this.playerResolver != null) {
+            this.playerResolver.shutdown();
+            this.playerResolver = null;
+        }
         getLogger().info("onDisable is called!");
     }
 
@@ -249,7 +306,7 @@ public class JavaBridge extends JavaPlugin {
         i.close();
         fo.close();
 
-        return new NodeJs(this, new File(config.getString("directory")), config.getString("executable"), nodeBridge.getCanonicalPath());
+        return new NodeJs(this, new File(config.getString("directory")), config.getString("executable"), nodeBridge.getCanonicalPath(), config.getBoolean("standby", true));
     }
 
 
@@ -259,22 +316,8 @@ public class JavaBridge extends JavaPlugin {
     }
 
     public YamlConfiguration parseJSON(String json) throws InvalidConfigurationException {
-        getLogger().info("Parsing JSON: " + json);
         YamlConfiguration conf = new YamlConfiguration();
         conf.loadFromString(json);
         return conf;
     }
-
-    private HashMap<String, BridgedCommand> registeredCommands = new HashMap<String, BridgedCommand>();
-    protected void registerCommand(YamlConfiguration cmd) throws NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
-        final Field bukkitCommandMap = this.getServer().getClass().getDeclaredField("commandMap");
-        final String command = cmd.getString("a", null);
-
-        bukkitCommandMap.setAccessible(true);
-        CommandMap commandMap = (CommandMap) bukkitCommandMap.get(Bukkit.getServer());
-
-        BridgedCommand bc = new BridgedCommand(this, this.node, command, cmd);
-        commandMap.register(command, bc);
-        this.registeredCommands.put(command, bc);
-    }
 }
@@ -12,6 +12,26 @@ public enum MessageType {
     MSG_PLAYER(6),
     MSG_PLAYER_MULTI(7),
 
+    STORAGE_GET(8),
+    STORAGE_SET(9),
+    STORAGE_SCAN(10),
+
+    SCHEDULE(11),
+    TICK(12),
+
+    REGION_READ(13),
+    REGION_WRITE(14),
+
+    ENTITY_QUERY(15),
+
+    INVENTORY(16),
+
+    UI(17),
+
+    COMMANDS(18),
+
+    PLUGIN(19),
+
     ERROR(30),
     REPLY(31);
 
@@ -30,6 +50,18 @@ public enum MessageType {
             case  5: return MessageType.SET_PLAYER;
             case  6: return MessageType.MSG_PLAYER;
             case  7: return MessageType.MSG_PLAYER_MULTI;
+            case  8: return MessageType.STORAGE_GET;
+            case  9: return MessageType.STORAGE_SET;
+            case 10: return MessageType.STORAGE_SCAN;
+            case 11: return MessageType.SCHEDULE;
+            case 12: return MessageType.TICK;
+            case 13: return MessageType.REGION_READ;
+            case 14: return MessageType.REGION_WRITE;
+            case 15: return MessageType.ENTITY_QUERY;
+            case 16: return MessageType.INVENTORY;
+            case 17: return MessageType.UI;
+            case 18: return MessageType.COMMANDS;
+            case 19: return MessageType.PLUGIN;
             case 30: return MessageType.ERROR;
             case 31: return MessageType.REPLY;
         }
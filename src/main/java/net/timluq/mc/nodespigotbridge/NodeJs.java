@@ -5,10 +5,16 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.logging.Level;
 
 public class NodeJs {
     private final String executable;
@@ -28,38 +34,267 @@ public class NodeJs {
     private Process nodeProcess = null;
     private final JavaBridge bridge;
 
+    /**
+     * Whether a loaded but idle process is kept around to take over if the active process exits.
+     */
+    private final boolean useStandby;
+    private Process standbyProcess = null;
+    private boolean stopping = false;
+    private Consumer<InputMessage> consumer = null;
+    private byte[] enableData = null;
+    private PluginAccounting accounting = null;
+    private final List<Runnable> restartListeners = new ArrayList<Runnable>();
+
+    /** restarts within this many milliseconds of the first one are counted together */
+    private static final long RESTART_WINDOW = 60000;
+    /** number of restarts within `RESTART_WINDOW` after which no more restarts are attempted */
+    private static final int MAX_RESTARTS = 5;
+    private long restartWindowStart = 0;
+    private int restarts = 0;
+
     public NodeJs(JavaBridge bridge, File directory, String executable, String startScript) {
+        this(bridge, directory, executable, startScript, false);
+    }
+
+    public NodeJs(JavaBridge bridge, File directory, String executable, String startScript, boolean useStandby) {
         this.bridge = bridge;
         this.directory = directory;
         this.executable = executable;
         this.startScript = startScript;
+        this.useStandby = useStandby;
     }
 
     public void start(Consumer<InputMessage> consumer) throws IOException {
         if (!this.directory.isDirectory()) {
             this.directory.mkdirs();
         }
+        this.consumer = consumer;
+        this.activate(this.spawn());
+        this.spawnStandby();
+    }
+
+    /**
+     * Register a callback which is run after the active process has exited unexpectedly,
+     * just before the replacement process is enabled.
+     */
+    public void addRestartListener(Runnable listener) {
+        synchronized (this.restartListeners) {
+            this.restartListeners.add(listener);
+        }
+    }
 
+    /**
+     * Account and limit received messages per node.js plugin before they are handled.
+     */
+    public void setAccounting(PluginAccounting accounting) {
+        this.accounting = accounting;
+    }
+
+    /**
+     * Set the payload sent with `MessageType.ENABLE` to each process which is made active.
+     */
+    public void setEnableData(byte[] data) {
+        this.enableData = data;
+    }
+
+    /**
+     * Start a new process. It will load its plugins but stay idle until it receives `MessageType.ENABLE`.
+     */
+    private Process spawn() throws IOException {
         ProcessBuilder procb = new ProcessBuilder(this.executable, this.startScript);
         procb.directory(this.directory);
         procb.redirectInput(Redirect.PIPE);
         procb.redirectError(Redirect.INHERIT);
         procb.redirectOutput(Redirect.PIPE);
+        return procb.start();
+    }
 
-        this.nodeProcess = procb.start();
-        this.inputCom = new InputCom(this.bridge, this.nodeProcess.getInputStream(), (m) -> {
-            if (m.type == MessageType.REPLY) {
-                syncCallbacks.remove(m.reply).complete(m);
+    /**
+     * Make a spawned process the active one and signal it to start its plugins.
+     */
+    private void activate(final Process p) throws IOException {
+        synchronized (this.syncOutput) {
+            this.nodeProcess = p;
+            this.inputCom = new InputCom(this.bridge, p.getInputStream(), this::receive);
+            this.inputCom.start();
+            final OutputStream o = p.getOutputStream();
+            if (this.enableData == null) {
+                o.write(MessageType.ENABLE.number);
             } else {
-                consumer.accept(m);
+                o.write(MessageType.ENABLE.number | SEND_BUFFER);
+                o.write(this.enableData.length >> 8);
+                o.write(this.enableData.length & 0xFF);
+                o.write(this.enableData);
+            }
+            o.flush();
+        }
+        p.onExit().thenAccept(this::exited);
+    }
+
+    private void receive(InputMessage m) {
+        if (m.type == MessageType.REPLY) {
+            final CompletableFuture<InputMessage> future;
+            synchronized (this.syncOutput) {
+                future = this.syncCallbacks.remove(m.reply);
+            }
+            if (future != null) {
+                future.complete(m);
+            }
+        } else if (this.accounting != null) {
+            this.accounting.receive(m);
+        } else {
+            this.consumer.accept(m);
+        }
+    }
+
+    /**
+     * Handle a message as if it had been received from node.js.
+     */
+    void dispatch(InputMessage m) {
+        this.consumer.accept(m);
+    }
+
+    /**
+     * Handle a message sent ahead of time on behalf of the node.js plugin `m.plugin`,
+     * which is accounted and limited like the messages that plugin sends directly.
+     */
+    void dispatchFrom(InputMessage m) {
+        if (this.accounting != null) {
+            this.accounting.account(m);
+        } else {
+            this.consumer.accept(m);
+        }
+    }
+
+    /**
+     * Spawn a standby process in the background unless one is already waiting.
+     */
+    private void spawnStandby() {
+        if (!this.useStandby) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            final Process s;
+            try {
+                s = this.spawn();
+            } catch (IOException e) {
+                this.bridge.getLogger().log(Level.WARNING, "Failed to start standby node.js process", e);
+                return;
+            }
+            synchronized (this.syncOutput) {
+                if (this.stopping || this.standbyProcess != null) {
+                    s.destroy();
+                    return;
+                }
+                this.standbyProcess = s;
             }
+            // a standby which dies is not respawned until the next failover to avoid a restart loop
+            s.onExit().thenAccept((p) -> {
+                synchronized (this.syncOutput) {
+                    if (this.standbyProcess != p) {
+                        return;
+                    }
+                    this.standbyProcess = null;
+                }
+                this.bridge.getLogger().warning("Standby node.js process exited with code " + p.exitValue());
+            });
         });
-        this.inputCom.start();
+    }
+
+    /**
+     * Fail all pending sync calls.
+     */
+    private void failPending(String reason) {
+        final List<CompletableFuture<InputMessage>> pending;
+        synchronized (this.syncOutput) {
+            pending = new ArrayList<CompletableFuture<InputMessage>>(this.syncCallbacks.values());
+            this.syncCallbacks.clear();
+        }
+        final IOException exc = new IOException(reason);
+        for (CompletableFuture<InputMessage> f : pending) {
+            f.completeExceptionally(exc);
+        }
+    }
+
+    /**
+     * Called when a process which has been active exits, replacing it with the standby process if possible.
+     */
+    private void exited(Process p) {
+        Process next;
+        synchronized (this.syncOutput) {
+            if (this.stopping || p != this.nodeProcess) {
+                return;
+            }
+            this.nodeProcess = null;
+            this.inputCom = null;
+            next = this.standbyProcess;
+            this.standbyProcess = null;
+        }
+        this.failPending("node.js process exited");
+
+        // a process which keeps failing, for instance because a plugin throws while starting, is not restarted forever
+        final long now = System.currentTimeMillis();
+        if (now - this.restartWindowStart > RESTART_WINDOW) {
+            this.restartWindowStart = now;
+            this.restarts = 0;
+        }
+        if (++this.restarts > MAX_RESTARTS) {
+            this.bridge.getLogger().severe("node.js process exited with code " + p.exitValue() + ", giving up after "
+                + MAX_RESTARTS + " restarts within " + (RESTART_WINDOW / 1000) + " seconds");
+            if (next != null) {
+                next.destroy();
+            }
+            return;
+        }
+        this.bridge.getLogger().severe("node.js process exited with code " + p.exitValue() + ", restarting");
+
+        try {
+            if (next == null || !next.isAlive()) {
+                next = this.spawn();
+            }
+            final Runnable[] listeners;
+            synchronized (this.restartListeners) {
+                listeners = this.restartListeners.toArray(new Runnable[this.restartListeners.size()]);
+            }
+            for (Runnable l : listeners) {
+                try {
+                    l.run();
+                } catch (RuntimeException e) {
+                    this.bridge.getLogger().log(Level.WARNING, "Restart listener failed", e);
+                }
+            }
+            synchronized (this.syncOutput) {
+                if (this.stopping) {
+                    next.destroy();
+                    return;
+                }
+                this.activate(next);
+            }
+        } catch (IOException e) {
+            this.bridge.getLogger().log(Level.SEVERE, "Failed to restart node.js process", e);
+            return;
+        }
+        this.spawnStandby();
+    }
+
+    /**
+     * Get the stream to the active process. Must be called while holding `syncOutput`.
+     */
+    private OutputStream output() throws IOException {
+        if (this.nodeProcess == null) {
+            throw new IOException("No node.js process is running");
+        }
+        return this.nodeProcess.getOutputStream();
     }
 
     public void stop() throws InterruptedException {
         final Process p;
         synchronized (this.syncOutput) {
+            this.stopping = true;
+            if (this.standbyProcess != null) {
+                this.standbyProcess.destroy();
+                this.standbyProcess = null;
+            }
             if (this.nodeProcess == null) {
                 return;
             }
@@ -76,6 +311,7 @@ public class NodeJs {
             this.nodeProcess = null;
             this.inputCom = null;
         }
+        this.failPending("node.js process stopped");
         p.onExit().completeOnTimeout(null, 16000, TimeUnit.MILLISECONDS).thenAccept((v) -> {
             if (v == null) {
                 p.destroy();
@@ -111,8 +347,8 @@ public class NodeJs {
             throw new RuntimeException("Explicit MessageType.REPLY is denied for sendBytes. Use sendReplyBytes instead.");
         }
         final CompletableFuture<InputMessage> future = sync ? new CompletableFuture<InputMessage>() : null;
-        int l = 1;
         synchronized (this.syncOutput) {
+            final OutputStream o = this.output();
             int n = com.number;
             short s = 0;
             if (sync) {
@@ -120,7 +356,6 @@ public class NodeJs {
                 this.syncCallbacks.put(s = syncIndex, future);
                 syncIndex = (short) ((syncIndex + 1) & 0x7FFF);
             }
-            final OutputStream o = this.nodeProcess.getOutputStream();
             if (data == null) {
                 o.write(n);
             } else {
@@ -128,19 +363,54 @@ public class NodeJs {
                 o.write(data.length >> 8);
                 o.write(data.length & 0xFF);
                 o.write(data);
-                l += 2 + data.length;
             }
             if (sync) {
-                l += 2;
                 o.write(s >> 8);
                 o.write(s & 0xFF);
             }
             o.flush();
         }
-        this.bridge.getLogger().info("sendBytes(): sent " + l + " bytes of data (payload = " + (data == null ? "null" : String.valueOf(data.length)) + ")");
         return future;
     }
 
+    /**
+     * Wait for the reply to a sync message for at most `timeout` milliseconds.
+     * A reply which arrives after the deadline is discarded.
+     * @return the reply or `null` if the deadline passed
+     */
+    public InputMessage await(CompletableFuture<InputMessage> future, long timeout) {
+        return this.await(future, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for the reply to a sync message for at most `timeout` in `unit`.
+     * A reply which arrives after the deadline is discarded.
+     * @return the reply or `null` if the deadline passed
+     */
+    public InputMessage await(CompletableFuture<InputMessage> future, long timeout, TimeUnit unit) {
+        try {
+            return future.get(timeout, unit);
+        } catch (TimeoutException e) {
+            this.forget(future);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.forget(future);
+            return null;
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        }
+    }
+
+    /**
+     * Stop waiting for the reply to a sync message, so that its id is free until the index wraps.
+     */
+    private void forget(CompletableFuture<InputMessage> future) {
+        synchronized (this.syncOutput) {
+            this.syncCallbacks.values().remove(future);
+        }
+    }
+
     /**
      * Send a message containing a short integer as the payload.
      */
@@ -156,8 +426,8 @@ public class NodeJs {
             throw new RuntimeException("Explicit MessageType.REPLY is denied for sendShort. Use sendReplyShort instead.");
         }
         final CompletableFuture<InputMessage> future = sync ? new CompletableFuture<InputMessage>() : null;
-        int l = 3;
         synchronized (this.syncOutput) {
+            final OutputStream o = this.output();
             int n = com.number;
             short s = 0;
             if (sync) {
@@ -165,18 +435,15 @@ public class NodeJs {
                 this.syncCallbacks.put(s = syncIndex, future);
                 syncIndex = (short) ((syncIndex + 1) & 0x7FFF);
             }
-            final OutputStream o = this.nodeProcess.getOutputStream();
             o.write(n | SEND_SHORT);
             o.write((data >> 8) & 0xFF);
             o.write(data & 0xFF);
             if (sync) {
                 o.write(s >> 8);
                 o.write(s & 0xFF);
-                l += 2;
             }
             o.flush();
         }
-        this.bridge.getLogger().info("sendShort(): sent " + l + " bytes of data");
         return future;
     }
 
@@ -185,7 +452,7 @@ public class NodeJs {
      */
     public void sendReplyShort(short replyId, short data) throws IOException {
         synchronized (this.syncOutput) {
-            final OutputStream o = this.nodeProcess.getOutputStream();
+            final OutputStream o = this.output();
             o.write(MessageType.REPLY.number | SEND_SYNC | SEND_SHORT);
             o.write((data >> 8) & 0xFF);
             o.write(data & 0xFF);
@@ -200,7 +467,7 @@ public class NodeJs {
      */
     public void sendReplySignal(short replyId) throws IOException {
         synchronized (this.syncOutput) {
-            final OutputStream o = this.nodeProcess.getOutputStream();
+            final OutputStream o = this.output();
             o.write(MessageType.REPLY.number | SEND_SYNC);
             o.write(replyId >> 8);
             o.write(replyId & 0xFF);
@@ -221,7 +488,7 @@ public class NodeJs {
      */
     public void sendReplyBytes(short replyId, byte[] data) throws IOException {
         synchronized (this.syncOutput) {
-            final OutputStream o = this.nodeProcess.getOutputStream();
+            final OutputStream o = this.output();
             int n = MessageType.REPLY.number | SEND_SYNC;
             if (data == null) {
                 o.write(n);
@@ -242,7 +509,7 @@ public class NodeJs {
      */
     public void sendReplyError(short replyId, Exception exc) throws IOException {
         synchronized (this.syncOutput) {
-            final OutputStream o = this.nodeProcess.getOutputStream();
+            final OutputStream o = this.output();
             int n = MessageType.ERROR.number | SEND_SYNC;
             StringBuilder sb = new StringBuilder();
             sb.append("{\"m\":\"");
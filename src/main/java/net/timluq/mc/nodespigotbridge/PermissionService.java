@@ -0,0 +1,244 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.permissions.PermissionAttachment;
+
+/**
+ * Grants and revokes permissions of players on behalf of node.js.
+ *
+ * Each player has a single attachment of this plugin which holds all granted permissions.
+ * Timed grants are kept in buckets by the tick they expire at.
+ * Changes are applied once per tick, so all changes to a player in that tick cause a single recalculation of its permissions.
+ */
+public class PermissionService implements Runnable, Listener {
+    private static final class Change {
+        final UUID player;
+        final String[] permissions;
+        /** number of ticks a grant lasts, `0` for permanent grants and `-1` for revokes */
+        final int ticks;
+
+        Change(UUID player, String[] permissions, int ticks) {
+            this.player = player;
+            this.permissions = permissions;
+            this.ticks = ticks;
+        }
+    }
+
+    private static final class Grants {
+        final PermissionAttachment attachment;
+        /** the tick each timed grant expires at */
+        final HashMap<String, Long> expiry = new HashMap<String, Long>();
+
+        Grants(PermissionAttachment attachment) {
+            this.attachment = attachment;
+        }
+    }
+
+    private static final class Expiry {
+        final UUID player;
+        final String permission;
+
+        Expiry(UUID player, String permission) {
+            this.player = player;
+            this.permission = permission;
+        }
+    }
+
+    private final JavaBridge bridge;
+    private final ConcurrentLinkedQueue<Change> changes = new ConcurrentLinkedQueue<Change>();
+
+    /** attachments by player, only accessed on the main thread */
+    private final HashMap<UUID, Grants> grants = new HashMap<UUID, Grants>();
+    /** timed grants by the tick they expire at, only accessed on the main thread */
+    private final HashMap<Long, List<Expiry>> expiring = new HashMap<Long, List<Expiry>>();
+    private long tick = 0;
+
+    /** the map backing `PermissionAttachment`, which allows changing it without a recalculation per permission */
+    private MethodHandle permissionsGetter = null;
+    private boolean resolved = false;
+
+    public PermissionService(JavaBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    /**
+     * Grant permissions to a player until it quits. May be called from any thread.
+     */
+    public void grant(UUID player, String[] permissions) {
+        this.changes.add(new Change(player, permissions, 0));
+    }
+
+    /**
+     * Grant permissions to a player for a number of ticks. May be called from any thread.
+     */
+    public void grant(UUID player, String[] permissions, int ticks) {
+        this.changes.add(new Change(player, permissions, Math.max(1, ticks)));
+    }
+
+    /**
+     * Revoke permissions which have been granted to a player. May be called from any thread.
+     */
+    public void revoke(UUID player, String[] permissions) {
+        this.changes.add(new Change(player, permissions, -1));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Boolean> permissions(PermissionAttachment att) {
+        if (!this.resolved) {
+            this.resolved = true;
+            try {
+                final Field f = PermissionAttachment.class.getDeclaredField("permissions");
+                f.setAccessible(true);
+                this.permissionsGetter = MethodHandles.lookup().unreflectGetter(f);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                this.bridge.getLogger().log(Level.WARNING, "Permissions are recalculated for each change", e);
+            }
+        }
+        if (this.permissionsGetter == null) {
+            return null;
+        }
+        try {
+            return (Map<String, Boolean>) this.permissionsGetter.invoke(att);
+        } catch (Throwable e) {
+            this.permissionsGetter = null;
+            return null;
+        }
+    }
+
+    private boolean holds(PermissionAttachment att, String permission) {
+        final Map<String, Boolean> map = this.permissions(att);
+        return (map != null ? map : att.getPermissions()).containsKey(permission.toLowerCase());
+    }
+
+    /**
+     * Set or unset a permission of an attachment, recalculating later if possible.
+     * @return whether the permissions of the player must be recalculated
+     */
+    private boolean set(PermissionAttachment att, String permission, boolean grant) {
+        final Map<String, Boolean> map = this.permissions(att);
+        if (map != null) {
+            if (grant) {
+                map.put(permission.toLowerCase(), true);
+            } else {
+                map.remove(permission.toLowerCase());
+            }
+            return true;
+        }
+        if (grant) {
+            att.setPermission(permission, true);
+        } else {
+            att.unsetPermission(permission);
+        }
+        return false;
+    }
+
+    private boolean contains(HashSet<String> permissions, String permission) {
+        return permissions != null && permissions.contains(permission.toLowerCase());
+    }
+
+    private void expireAt(long at, UUID player, String permission) {
+        List<Expiry> bucket = this.expiring.get(at);
+        if (bucket == null) {
+            this.expiring.put(at, bucket = new ArrayList<Expiry>());
+        }
+        bucket.add(new Expiry(player, permission));
+    }
+
+    /**
+     * Revoke expired grants and apply the changes of this tick.
+     */
+    @Override
+    public void run() {
+        final long now = ++this.tick;
+        final HashMap<UUID, Player> recalculate = new HashMap<UUID, Player>();
+        // the effective permissions of a player are only recalculated at the end, so they are stale for permissions unset this tick
+        final HashMap<UUID, HashSet<String>> unset = new HashMap<UUID, HashSet<String>>();
+        // expired grants first, so a grant of the same permission in this tick is applied again
+        final List<Expiry> expired = this.expiring.remove(now);
+        if (expired != null) {
+            for (Expiry e : expired) {
+                final Grants g = this.grants.get(e.player);
+                final Long at = g == null ? null : g.expiry.get(e.permission);
+                if (at == null || at != now) {
+                    continue;
+                }
+                g.expiry.remove(e.permission);
+                unset.computeIfAbsent(e.player, (u) -> new HashSet<String>()).add(e.permission.toLowerCase());
+                if (this.set(g.attachment, e.permission, false)) {
+                    final Player p = this.bridge.getServer().getPlayer(e.player);
+                    if (p != null) {
+                        recalculate.put(e.player, p);
+                    }
+                }
+            }
+        }
+        for (Change c; (c = this.changes.poll()) != null;) {
+            final Player p = this.bridge.getServer().getPlayer(c.player);
+            if (p == null) {
+                continue;
+            }
+            Grants g = this.grants.get(c.player);
+            if (g == null) {
+                if (c.ticks < 0) {
+                    continue;
+                }
+                this.grants.put(c.player, g = new Grants(p.addAttachment(this.bridge)));
+            }
+            boolean dirty = false;
+            for (String perm : c.permissions) {
+                final boolean held = this.holds(g.attachment, perm);
+                if (c.ticks < 0) {
+                    g.expiry.remove(perm);
+                    if (held) {
+                        dirty |= this.set(g.attachment, perm, false);
+                        unset.computeIfAbsent(c.player, (u) -> new HashSet<String>()).add(perm.toLowerCase());
+                    }
+                } else if (held) {
+                    final Long at = g.expiry.get(perm);
+                    if (c.ticks == 0) {
+                        g.expiry.remove(perm);
+                    } else if (at != null && at < now + c.ticks) {
+                        // the bucket of the earlier expiry ignores the grant since it no longer matches
+                        g.expiry.put(perm, now + c.ticks);
+                        this.expireAt(now + c.ticks, c.player, perm);
+                    }
+                } else if (this.contains(unset.get(c.player), perm) || !p.hasPermission(perm)) {
+                    // permissions which the player has from elsewhere are left alone
+                    dirty |= this.set(g.attachment, perm, true);
+                    if (c.ticks > 0) {
+                        g.expiry.put(perm, now + c.ticks);
+                        this.expireAt(now + c.ticks, c.player, perm);
+                    }
+                }
+            }
+            if (dirty) {
+                recalculate.put(c.player, p);
+            }
+        }
+        for (Player p : recalculate.values()) {
+            p.recalculatePermissions();
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(PlayerQuitEvent event) {
+        // the attachment is discarded together with the player, expiry buckets skip players without grants
+        this.grants.remove(event.getPlayer().getUniqueId());
+    }
+}
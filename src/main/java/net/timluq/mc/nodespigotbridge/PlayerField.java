@@ -11,6 +11,7 @@ public enum PlayerField {
     
     PERMISSIONS(0x100),
     PERMISSIONS_MATCHING(0x101),
+    PERMISSIONS_REVOKE(0x102),
 
     UUID(0x200);
 
@@ -31,6 +32,7 @@ public enum PlayerField {
             case     6: return LEVEL;
             case 0x100: return PERMISSIONS;
             case 0x101: return PERMISSIONS_MATCHING;
+            case 0x102: return PERMISSIONS_REVOKE;
             case 0x200: return UUID;
         }
         throw new IndexOutOfBoundsException(v);
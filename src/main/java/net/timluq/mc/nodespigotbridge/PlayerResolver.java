@@ -0,0 +1,147 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.OfflinePlayer;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+/**
+ * Resolves player names to UUIDs.
+ *
+ * Lookups which may require a network request are run on a dedicated bounded executor.
+ * Results, including misses, are cached for a while and concurrent lookups of the same name share one future.
+ * The cache is also fed by players joining and leaving the server.
+ */
+public class PlayerResolver implements Listener {
+    private static final class Entry {
+        final UUID uuid;
+        final long expires;
+
+        Entry(UUID uuid, long expires) {
+            this.uuid = uuid;
+            this.expires = expires;
+        }
+    }
+
+    private final JavaBridge bridge;
+    private final long ttl;
+    private final long negativeTtl;
+    private final ThreadPoolExecutor executor;
+
+    /** Maximum number of cached names, expired entries are evicted when it is reached */
+    private static final int MAX_CACHED = 8192;
+
+    private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, CompletableFuture<UUID>> pending = new ConcurrentHashMap<String, CompletableFuture<UUID>>();
+
+    /**
+     * @param threads maximum number of concurrent lookups
+     * @param queueSize maximum number of lookups waiting for a thread
+     * @param ttl milliseconds to keep a resolved name
+     * @param negativeTtl milliseconds to keep a name which could not be resolved
+     */
+    public PlayerResolver(JavaBridge bridge, int threads, int queueSize, long ttl, long negativeTtl) {
+        this.bridge = bridge;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        final AtomicInteger threadIndex = new AtomicInteger();
+        final ThreadFactory factory = (r) -> {
+            Thread t = new Thread(r, "NodeSpigotBridge-PlayerResolver-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize), factory);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Resolve a player name to a UUID. The future completes with `null` if there is no such player.
+     */
+    public CompletableFuture<UUID> resolve(final String name) {
+        final String k = key(name);
+        final Entry e = this.cache.get(k);
+        if (e != null) {
+            if (e.expires > System.currentTimeMillis()) {
+                return CompletableFuture.completedFuture(e.uuid);
+            }
+            this.cache.remove(k, e);
+        }
+        final CompletableFuture<UUID> created = new CompletableFuture<UUID>();
+        final CompletableFuture<UUID> existing = this.pending.putIfAbsent(k, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            CompletableFuture.supplyAsync(() -> this.lookup(name), this.executor).whenComplete((uuid, err) -> {
+                // a failed lookup is cached as a miss so that a failing name is not looked up again right away
+                this.put(k, err == null ? uuid : null);
+                this.pending.remove(k, created);
+                if (err != null) {
+                    created.completeExceptionally(err);
+                } else {
+                    created.complete(uuid);
+                }
+            });
+        } catch (RuntimeException err) {
+            // the queue is full
+            this.pending.remove(k, created);
+            created.completeExceptionally(err);
+        }
+        return created;
+    }
+
+    @SuppressWarnings("deprecation")
+    private UUID lookup(String name) {
+        final OfflinePlayer op = this.bridge.getServer().getOfflinePlayer(name);
+        return op == null ? null : op.getUniqueId();
+    }
+
+    private void put(String k, UUID uuid) {
+        final long now = System.currentTimeMillis();
+        if (this.cache.size() >= MAX_CACHED) {
+            this.cache.values().removeIf((e) -> e.expires <= now);
+            // names which have not expired yet are dropped in no particular order
+            for (Iterator<String> it = this.cache.keySet().iterator(); it.hasNext() && this.cache.size() >= MAX_CACHED;) {
+                it.next();
+                it.remove();
+            }
+        }
+        final long t = uuid == null ? this.negativeTtl : this.ttl;
+        this.cache.put(k, new Entry(uuid, now + t));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        final Player p = event.getPlayer();
+        this.put(key(p.getName()), p.getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        final Player p = event.getPlayer();
+        this.put(key(p.getName()), p.getUniqueId());
+    }
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+        this.cache.clear();
+    }
+}
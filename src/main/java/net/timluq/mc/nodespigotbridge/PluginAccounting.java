@@ -0,0 +1,373 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * Accounts frames, bytes and handler time per node.js plugin and limits the rate of messages.
+ *
+ * node.js tags its frames with `PLUGIN` messages where the short value is the id of a plugin:
+ * - with a payload, the payload is the name of the plugin with that id
+ * - without a payload, the following frames are sent on behalf of that plugin, `0` being the bridge itself
+ * - expecting a reply, the statistics of all plugins and the waiting statistics of sync commands are replied with as JSON
+ *
+ * Each plugin has a token bucket per limited `MessageType`. A message which finds its bucket empty
+ * is either deferred until the bucket has refilled, which is checked once per tick, or dropped.
+ * Deferred messages are dispatched by an asynchronous task, so their handlers do not run inside the tick.
+ * A dropped message which expects a reply is replied to with an error.
+ * While a plugin has deferred messages, all its following messages are deferred behind them,
+ * so that messages of a plugin are handled in the order they were sent.
+ * The bridge itself, which sends batches collected from several plugins such as hud updates, is not limited.
+ * Messages of scheduled tasks are accounted to the plugin which scheduled the task when they are due.
+ */
+public class PluginAccounting implements Runnable {
+    /**
+     * Accumulated statistics for a single plugin.
+     */
+    public static final class Stats {
+        public long frames = 0;
+        public long bytes = 0;
+        public long handlerNanos = 0;
+        public long maxHandlerNanos = 0;
+        public long deferred = 0;
+        public long dropped = 0;
+    }
+
+    private static final class Bucket {
+        final double rate;
+        final double burst;
+        double tokens;
+        long last;
+
+        Bucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            this.last = System.nanoTime();
+        }
+
+        void refill(long now) {
+            this.tokens = Math.min(this.burst, this.tokens + (now - this.last) * this.rate / 1e9);
+            this.last = now;
+        }
+    }
+
+    private final JavaBridge bridge;
+    private final NodeJs node;
+    private final ConfigurationSection rates;
+    private final double burstSeconds;
+    private final boolean defer;
+    private final int maxQueue;
+
+    /** names of the plugins of the running process */
+    private final ConcurrentHashMap<Short, String> names = new ConcurrentHashMap<Short, String>();
+    /** the plugin which sends the frames currently being received, only accessed by the receiving thread */
+    private short current = 0;
+    private volatile boolean reset = false;
+
+    private final HashMap<String, Stats> stats = new HashMap<String, Stats>();
+    /** the limited message types of each plugin */
+    private final HashMap<String, EnumMap<MessageType, Bucket>> buckets = new HashMap<String, EnumMap<MessageType, Bucket>>();
+    /** deferred messages of each plugin, in the order they were received */
+    private final HashMap<String, ArrayDeque<InputMessage>> deferred = new HashMap<String, ArrayDeque<InputMessage>>();
+    /** whether an asynchronous task is dispatching deferred messages */
+    private boolean draining = false;
+
+    /**
+     * @param limits configuration with the keys `mode` (`defer` or `drop`), `queue`, `burst` and `rates`,
+     *   where `rates` maps message type names to frames per second,
+     *   optionally overridden per plugin by `plugins.<plugin name>.<message type name>`
+     */
+    public PluginAccounting(JavaBridge bridge, NodeJs node, ConfigurationSection limits) {
+        this.bridge = bridge;
+        this.node = node;
+        this.rates = limits;
+        this.burstSeconds = limits.getDouble("burst", 1.0);
+        this.defer = !"drop".equalsIgnoreCase(limits.getString("mode", "defer"));
+        this.maxQueue = limits.getInt("queue", 1024);
+        node.addRestartListener(() -> this.restarted());
+    }
+
+    /**
+     * Get the buckets of a plugin, creating them from the configuration the first time the plugin is seen.
+     */
+    private EnumMap<MessageType, Bucket> buckets(String plugin) {
+        EnumMap<MessageType, Bucket> bs = this.buckets.get(plugin);
+        if (bs == null) {
+            bs = new EnumMap<MessageType, Bucket>(MessageType.class);
+            for (MessageType type : MessageType.values()) {
+                if (type == MessageType.REPLY || type == MessageType.ERROR || type == MessageType.PLUGIN) {
+                    continue;
+                }
+                double rate = this.rates.getDouble("plugins." + plugin + "." + type.name(), -1);
+                if (rate < 0) {
+                    rate = this.rates.getDouble("rates." + type.name(), 0);
+                }
+                if (rate > 0) {
+                    bs.put(type, new Bucket(rate, Math.max(1, rate * this.burstSeconds)));
+                }
+            }
+            this.buckets.put(plugin, bs);
+        }
+        return bs;
+    }
+
+    private String name(short id) {
+        if (id == 0) {
+            return "";
+        }
+        final String n = this.names.get(id);
+        return n == null ? "#" + id : n;
+    }
+
+    private Stats stats(String name) {
+        Stats s = this.stats.get(name);
+        if (s == null) {
+            this.stats.put(name, s = new Stats());
+        }
+        return s;
+    }
+
+    private static int size(InputMessage m) {
+        return 1 + (m.shortValue == null ? 0 : 2) + (m.binaryValue == null ? 0 : 2 + m.binaryValue.length) + (m.reply == null ? 0 : 2);
+    }
+
+    /**
+     * Account and dispatch a message received from node.js. Called on the receiving thread.
+     */
+    public void receive(InputMessage m) {
+        if (this.reset) {
+            this.reset = false;
+            this.current = 0;
+        }
+        if (m.type == MessageType.PLUGIN) {
+            this.tag(m);
+            return;
+        }
+        m.plugin = this.current;
+        this.account(m);
+    }
+
+    /**
+     * Account, limit and dispatch a message of the plugin `m.plugin`. May be called from any thread.
+     */
+    public void account(InputMessage m) {
+        final String name = this.name(m.plugin);
+        boolean admit = true;
+        synchronized (this) {
+            final Stats s = this.stats(name);
+            s.frames++;
+            s.bytes += size(m);
+            final ArrayDeque<InputMessage> q = this.deferred.get(name);
+            final Bucket b = m.plugin == 0 ? null : this.buckets(name).get(m.type);
+            if (b != null) {
+                b.refill(System.nanoTime());
+            }
+            if ((q == null || q.isEmpty()) && (b == null || b.tokens >= 1)) {
+                if (b != null) {
+                    b.tokens -= 1;
+                }
+            } else if (this.defer && (q == null || q.size() < this.maxQueue)) {
+                this.deferred.computeIfAbsent(name, (n) -> new ArrayDeque<InputMessage>()).add(m);
+                s.deferred++;
+                return;
+            } else {
+                s.dropped++;
+                admit = false;
+            }
+        }
+        if (admit) {
+            this.dispatch(name, m);
+        } else if (m.reply != null) {
+            try {
+                this.node.sendReplyError(m.reply, new IllegalStateException("Rate limit of " + m.type + " exceeded by " + name));
+            } catch (IOException e) {
+                this.bridge.getLogger().log(Level.SEVERE, "Failed to send reply (" + String.valueOf(m.reply) + ") to: " + String.valueOf(m.type), e);
+            }
+        }
+    }
+
+    private void tag(InputMessage m) {
+        final short id = m.shortValue == null ? 0 : m.shortValue;
+        if (m.binaryValue != null) {
+            this.names.put(id, new String(m.binaryValue, StandardCharsets.UTF_8));
+        } else if (m.reply != null) {
+            try {
+                this.node.sendReplyString(m.reply, this.toJSON());
+            } catch (IOException e) {
+                this.bridge.getLogger().log(Level.SEVERE, "Failed to send reply (" + String.valueOf(m.reply) + ") to: PLUGIN", e);
+            }
+        } else {
+            this.current = id;
+        }
+    }
+
+    private void dispatch(String name, InputMessage m) {
+        final long t = System.nanoTime();
+        try {
+            this.node.dispatch(m);
+        } finally {
+            final long nanos = System.nanoTime() - t;
+            synchronized (this) {
+                final Stats s = this.stats(name);
+                s.handlerNanos += nanos;
+                if (nanos > s.maxHandlerNanos) {
+                    s.maxHandlerNanos = nanos;
+                }
+            }
+        }
+    }
+
+    private void restarted() {
+        this.names.clear();
+        this.reset = true;
+        synchronized (this) {
+            // deferred messages belong to the process which sent them
+            this.deferred.clear();
+        }
+    }
+
+    /**
+     * Start dispatching deferred messages for which tokens have become available.
+     */
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (this.draining || this.deferred.isEmpty()) {
+                return;
+            }
+            this.draining = true;
+        }
+        // handlers expect to be called off the main thread, like for messages which were not deferred
+        this.bridge.getServer().getScheduler().runTaskAsynchronously(this.bridge, this::drain);
+    }
+
+    /**
+     * Dispatch deferred messages in order until the bucket of the next message of each plugin is empty.
+     * A message is only removed from its queue once it has been handled, so that messages received meanwhile wait behind it.
+     */
+    private void drain() {
+        try {
+            final long now = System.nanoTime();
+            final ArrayList<String> plugins;
+            synchronized (this) {
+                plugins = new ArrayList<String>(this.deferred.keySet());
+            }
+            for (String plugin : plugins) {
+                while (true) {
+                    final ArrayDeque<InputMessage> q;
+                    final InputMessage m;
+                    synchronized (this) {
+                        q = this.deferred.get(plugin);
+                        m = q == null ? null : q.peek();
+                        if (m == null) {
+                            break;
+                        }
+                        final Bucket b = this.buckets(plugin).get(m.type);
+                        if (b != null) {
+                            b.refill(now);
+                            if (b.tokens < 1) {
+                                break;
+                            }
+                            b.tokens -= 1;
+                        }
+                    }
+                    try {
+                        this.dispatch(plugin, m);
+                    } catch (RuntimeException e) {
+                        this.bridge.getLogger().log(Level.WARNING, "Deferred " + String.valueOf(m.type) + " of " + plugin + " failed", e);
+                    }
+                    synchronized (this) {
+                        // the queue may have been cleared by a restart meanwhile
+                        if (q.peek() == m) {
+                            q.poll();
+                        }
+                        if (q.isEmpty() && this.deferred.get(plugin) == q) {
+                            this.deferred.remove(plugin);
+                        }
+                    }
+                }
+            }
+        } finally {
+            synchronized (this) {
+                this.draining = false;
+            }
+        }
+    }
+
+    /**
+     * A copy of the statistics per plugin name, where the bridge itself has an empty name.
+     */
+    public synchronized Map<String, Stats> getStats() {
+        final TreeMap<String, Stats> r = new TreeMap<String, Stats>();
+        for (Map.Entry<String, Stats> e : this.stats.entrySet()) {
+            final Stats s = e.getValue();
+            final Stats c = new Stats();
+            c.frames = s.frames;
+            c.bytes = s.bytes;
+            c.handlerNanos = s.handlerNanos;
+            c.maxHandlerNanos = s.maxHandlerNanos;
+            c.deferred = s.deferred;
+            c.dropped = s.dropped;
+            r.put(e.getKey(), c);
+        }
+        return r;
+    }
+
+    private String toJSON() {
+        final StringBuilder sb = new StringBuilder("{\"p\":[");
+        boolean first = true;
+        for (Map.Entry<String, Stats> e : this.getStats().entrySet()) {
+            final Stats s = e.getValue();
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            try {
+                Encodings.escapeString(sb.append("{\"n\":\""), e.getKey()).append('"');
+            } catch (IOException ex) {
+                // appending to a StringBuilder does not fail
+            }
+            sb.append(",\"f\":").append(s.frames)
+                .append(",\"b\":").append(s.bytes)
+                .append(",\"h\":").append(s.handlerNanos)
+                .append(",\"hm\":").append(s.maxHandlerNanos)
+                .append(",\"q\":").append(s.deferred)
+                .append(",\"d\":").append(s.dropped)
+                .append('}');
+        }
+        sb.append("],\"c\":[");
+        first = true;
+        final SyncWatchdog w = this.bridge.watchdog;
+        for (Map.Entry<String, SyncWatchdog.Stats> e : (w == null ? new TreeMap<String, SyncWatchdog.Stats>() : w.getStats()).entrySet()) {
+            final SyncWatchdog.Stats s = e.getValue();
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            try {
+                Encodings.escapeString(sb.append("{\"n\":\""), e.getKey()).append('"');
+            } catch (IOException ex) {
+                // appending to a StringBuilder does not fail
+            }
+            sb.append(",\"k\":").append(s.calls)
+                .append(",\"t\":").append(s.timeouts)
+                .append(",\"w\":").append(s.waitNanos)
+                .append(",\"wm\":").append(s.maxWaitNanos)
+                .append(",\"o\":").append(s.overBudgetTicks)
+                .append(",\"s\":").append(s.skipped)
+                .append('}');
+        }
+        return sb.append("]}").toString();
+    }
+}
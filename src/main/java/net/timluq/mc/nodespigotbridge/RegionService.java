@@ -0,0 +1,397 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+
+/**
+ * Reads and writes cuboid regions of blocks in bulk.
+ *
+ * A region is encoded like a chunk section, as a stream of
+ * `[u16 palette size][u16 length][block data string]...[u8 bits per block][packed palette indices]`
+ * where block `(x, y, z)` relative to the lowest corner has index `(y * dz + z) * dx + x`.
+ * An empty block data string in a written palette leaves those blocks unchanged.
+ *
+ * The stream is sent in as many frames as needed, each starting with `[u32 region id]`:
+ * - `REGION_READ` from node.js: `[u32 id][u8 world length][world][i32 x1, y1, z1, x2, y2, z2]`, expects a reply.
+ *   The stream is sent back as `REGION_READ` frames of `[u32 id][bytes]` before the reply.
+ * - `REGION_WRITE` from node.js with short value `0`: `[u32 id][u8 world length][world][i32 x1, y1, z1, x2, y2, z2]`,
+ *   `1`: `[u32 id][bytes]` and `2`: `[u32 id]` to apply the region, which is replied to when done.
+ *   Progress is sent back as `REGION_WRITE` frames of `[u32 id][u32 blocks done][u32 blocks total]`.
+ *
+ * Reads are snapshotted chunk by chunk on the main thread and encoded asynchronously.
+ * Writes are decoded asynchronously and applied on the main thread.
+ * Snapshots and writes share a time budget per tick on the main thread.
+ */
+public class RegionService implements Runnable {
+    private static final short OP_BEGIN = 0;
+    private static final short OP_DATA = 1;
+    private static final short OP_COMMIT = 2;
+
+    private static final int MAX_FRAME = 0x7FFF - 4;
+    /** Maximum length of a block data string in a written palette */
+    private static final int MAX_BLOCK_DATA = 256;
+
+    private static final class Bounds {
+        final String world;
+        final int x;
+        final int y;
+        final int z;
+        final int dx;
+        final int dy;
+        final int dz;
+
+        Bounds(byte[] b, int off) {
+            final int wLen = b[off] & 0xFF;
+            this.world = new String(b, off + 1, wLen, StandardCharsets.UTF_8);
+            off += 1 + wLen;
+            final int x1 = Encodings.leInt(b, off), y1 = Encodings.leInt(b, off + 4), z1 = Encodings.leInt(b, off + 8);
+            final int x2 = Encodings.leInt(b, off + 12), y2 = Encodings.leInt(b, off + 16), z2 = Encodings.leInt(b, off + 20);
+            this.x = Math.min(x1, x2);
+            this.y = Math.min(y1, y2);
+            this.z = Math.min(z1, z2);
+            this.dx = Math.abs(x2 - x1) + 1;
+            this.dy = Math.abs(y2 - y1) + 1;
+            this.dz = Math.abs(z2 - z1) + 1;
+        }
+
+        long volume() {
+            return (long) this.dx * this.dy * this.dz;
+        }
+    }
+
+    private static final class Read {
+        final int id;
+        final Bounds bounds;
+        final Short reply;
+        final int cx;
+        final int cz;
+        final int cdx;
+        final ChunkSnapshot[] chunks;
+        int done = 0;
+
+        Read(int id, Bounds bounds, Short reply) {
+            this.id = id;
+            this.bounds = bounds;
+            this.reply = reply;
+            this.cx = bounds.x >> 4;
+            this.cz = bounds.z >> 4;
+            this.cdx = ((bounds.x + bounds.dx - 1) >> 4) - this.cx + 1;
+            this.chunks = new ChunkSnapshot[this.cdx * (((bounds.z + bounds.dz - 1) >> 4) - this.cz + 1)];
+        }
+    }
+
+    private static final class Write {
+        final int id;
+        final Bounds bounds;
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        /** the largest stream a region of these bounds may be encoded as */
+        final long maxBytes;
+        short reply = -1;
+        BlockData[] palette = null;
+        int[] indices = null;
+        int done = 0;
+
+        Write(int id, Bounds bounds) {
+            this.id = id;
+            this.bounds = bounds;
+            final long volume = bounds.volume();
+            // a palette has at most 0xFFFF entries, so indices take at most 16 bits each
+            this.maxBytes = 3 + volume * 2 + Math.min(volume, 0xFFFF) * (2 + MAX_BLOCK_DATA);
+        }
+    }
+
+    private final JavaBridge bridge;
+    private final NodeJs node;
+    private final long tickBudgetNanos;
+    private final long maxBlocks;
+
+    /** writes which are being received */
+    private final ConcurrentHashMap<Integer, Write> receiving = new ConcurrentHashMap<Integer, Write>();
+    /** reads which are being snapshotted, only accessed on the main thread */
+    private final ArrayDeque<Read> reading = new ArrayDeque<Read>();
+    /** writes which are waiting to be applied, only accessed on the main thread */
+    private final ArrayDeque<Write> applying = new ArrayDeque<Write>();
+
+    /**
+     * @param tickBudget milliseconds per tick which may be spent snapshotting reads and applying writes
+     * @param maxBlocks maximum number of blocks in a single region
+     */
+    public RegionService(JavaBridge bridge, NodeJs node, long tickBudget, long maxBlocks) {
+        this.bridge = bridge;
+        this.node = node;
+        this.tickBudgetNanos = tickBudget * 1000000L;
+        this.maxBlocks = maxBlocks;
+        // replies to reads and writes of a process which has exited would reach the new process
+        node.addRestartListener(() -> {
+            this.receiving.clear();
+            bridge.getServer().getScheduler().runTask(bridge, () -> {
+                this.reading.clear();
+                this.applying.clear();
+            });
+        });
+    }
+
+    /**
+     * Handle a message of type `REGION_READ` or `REGION_WRITE`. May be called from any thread.
+     */
+    public void handle(final InputMessage m) {
+        try {
+            final byte[] b = m.binaryValue;
+            final int id = Encodings.leInt(b, 0);
+            if (m.type == MessageType.REGION_READ) {
+                final Read r = new Read(id, this.bounds(b), m.reply);
+                this.bridge.getServer().getScheduler().runTask(this.bridge, () -> this.reading.add(r));
+            } else if (m.shortValue == OP_BEGIN) {
+                this.receiving.put(id, new Write(id, this.bounds(b)));
+            } else if (m.shortValue == OP_DATA) {
+                final Write w = this.receiving.get(id);
+                if (w == null) {
+                    throw new IllegalStateException("No region write with id " + id);
+                }
+                if (w.data.size() + b.length - 4 > w.maxBytes) {
+                    this.receiving.remove(id, w);
+                    throw new IllegalArgumentException("Region write " + id + " is larger than its bounds allow");
+                }
+                w.data.write(b, 4, b.length - 4);
+            } else if (m.shortValue == OP_COMMIT) {
+                final Write w = this.receiving.remove(id);
+                if (w == null) {
+                    throw new IllegalStateException("No region write with id " + id);
+                }
+                if (m.reply != null) {
+                    w.reply = m.reply;
+                }
+                // unpacking millions of indices would hold up all other frames on the input thread
+                this.bridge.getServer().getScheduler().runTaskAsynchronously(this.bridge, () -> {
+                    try {
+                        this.decode(w);
+                    } catch (RuntimeException e) {
+                        this.bridge.getLogger().log(Level.WARNING, "Invalid region write " + w.id, e);
+                        if (w.reply >= 0) {
+                            this.replyError(w.reply, e);
+                        }
+                        return;
+                    }
+                    this.bridge.getServer().getScheduler().runTask(this.bridge, () -> this.applying.add(w));
+                });
+            }
+        } catch (RuntimeException e) {
+            this.bridge.getLogger().log(Level.WARNING, "Invalid " + String.valueOf(m.type) + " message", e);
+            if (m.reply != null) {
+                this.replyError(m.reply, e);
+            }
+        }
+    }
+
+    private Bounds bounds(byte[] b) {
+        final Bounds bounds = new Bounds(b, 4);
+        if (bounds.volume() > this.maxBlocks) {
+            throw new IllegalArgumentException("Region of " + bounds.volume() + " blocks is larger than the limit of " + this.maxBlocks);
+        }
+        return bounds;
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    private World world(Bounds bounds) {
+        final World world = this.bridge.getServer().getWorld(bounds.world);
+        if (world == null) {
+            throw new IllegalArgumentException("No world named " + bounds.world);
+        }
+        return world;
+    }
+
+    /**
+     * Take snapshots of the chunks of queued reads until `end`, encoding each read once all its chunks are taken.
+     * Must be called on the main thread.
+     * @return whether the budget has been spent
+     */
+    private boolean snapshot(long end) {
+        Read r;
+        while ((r = this.reading.peek()) != null) {
+            try {
+                final World world = this.world(r.bounds);
+                while (r.done < r.chunks.length) {
+                    final int i = r.done++;
+                    r.chunks[i] = world.getChunkAt(r.cx + i % r.cdx, r.cz + i / r.cdx).getChunkSnapshot();
+                    if (System.nanoTime() > end) {
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                this.bridge.getLogger().log(Level.WARNING, "Failed to read region " + r.id, e);
+                this.reading.poll();
+                if (r.reply != null) {
+                    this.replyError(r.reply, e);
+                }
+                continue;
+            }
+            if (r.done < r.chunks.length) {
+                return true;
+            }
+            this.reading.poll();
+            final Read read = r;
+            this.bridge.getServer().getScheduler().runTaskAsynchronously(this.bridge, () -> {
+                try {
+                    this.sendRead(read.id, this.encode(read.bounds, read.chunks, read.cx, read.cz, read.cdx), read.reply);
+                } catch (RuntimeException e) {
+                    this.bridge.getLogger().log(Level.WARNING, "Failed to read region " + read.id, e);
+                    if (read.reply != null) {
+                        this.replyError(read.reply, e);
+                    }
+                }
+            });
+            if (System.nanoTime() > end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] encode(Bounds r, ChunkSnapshot[] chunks, int cx, int cz, int cdx) {
+        final HashMap<BlockData, Integer> ids = new HashMap<BlockData, Integer>();
+        final ArrayList<BlockData> palette = new ArrayList<BlockData>();
+        final int[] indices = new int[(int) r.volume()];
+        int i = 0;
+        for (int y = r.y; y < r.y + r.dy; y++) {
+            for (int z = r.z; z < r.z + r.dz; z++) {
+                for (int x = r.x; x < r.x + r.dx; x++) {
+                    final BlockData d = chunks[((z >> 4) - cz) * cdx + (x >> 4) - cx].getBlockData(x & 15, y, z & 15);
+                    Integer p = ids.get(d);
+                    if (p == null) {
+                        ids.put(d, p = palette.size());
+                        palette.add(d);
+                    }
+                    indices[i++] = p;
+                }
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(palette.size() >> 8);
+        out.write(palette.size());
+        for (BlockData d : palette) {
+            final byte[] s = d.getAsString().getBytes(StandardCharsets.UTF_8);
+            out.write(s.length >> 8);
+            out.write(s.length);
+            out.write(s, 0, s.length);
+        }
+        final int bits = Encodings.paletteBits(palette.size());
+        out.write(bits);
+        final byte[] packed = Encodings.packBits(indices, bits);
+        out.write(packed, 0, packed.length);
+        return out.toByteArray();
+    }
+
+    private void sendRead(int id, byte[] data, Short reply) {
+        try {
+            for (int off = 0; off < data.length; off += MAX_FRAME) {
+                final int len = Math.min(MAX_FRAME, data.length - off);
+                this.node.sendBytes(MessageType.REGION_READ, ByteBuffer.allocate(4 + len).putInt(id).put(data, off, len).array(), false);
+            }
+            if (reply != null) {
+                this.node.sendReplySignal(reply);
+            }
+        } catch (IOException e) {
+            this.bridge.getLogger().log(Level.SEVERE, "Failed to send region " + id, e);
+        }
+    }
+
+    /**
+     * Decode the received stream of a write into a palette and indices.
+     */
+    private void decode(Write w) {
+        final byte[] b = w.data.toByteArray();
+        final int size = Encodings.leShort(b, 0) & 0xFFFF;
+        final String[] palette = new String[size];
+        int off = 2;
+        for (int i = 0; i < size; i++) {
+            final int len = Encodings.leShort(b, off) & 0xFFFF;
+            palette[i] = new String(b, off + 2, len, StandardCharsets.UTF_8);
+            off += 2 + len;
+        }
+        final int bits = b[off++] & 0xFF;
+        final int count = (int) w.bounds.volume();
+        if ((b.length - off) * 8L < (long) bits * count) {
+            throw new IllegalArgumentException("Region data is too short");
+        }
+        w.indices = Encodings.unpackBits(b, off, bits, count);
+        w.palette = new BlockData[size];
+        for (int i = 0; i < size; i++) {
+            w.palette[i] = palette[i].isEmpty() ? null : this.bridge.getServer().createBlockData(palette[i]);
+        }
+    }
+
+    /**
+     * Snapshot queued reads and apply queued writes until the budget of this tick is spent.
+     */
+    @Override
+    public void run() {
+        if (this.reading.isEmpty() && this.applying.isEmpty()) {
+            return;
+        }
+        final long end = System.nanoTime() + this.tickBudgetNanos;
+        if (this.snapshot(end)) {
+            return;
+        }
+        Write w;
+        while ((w = this.applying.peek()) != null) {
+            final Bounds r = w.bounds;
+            final int total = w.indices.length;
+            try {
+                final World world = this.world(r);
+                while (w.done < total) {
+                    final int i = w.done++;
+                    final BlockData d = w.palette[w.indices[i]];
+                    if (d != null) {
+                        world.getBlockAt(r.x + i % r.dx, r.y + i / (r.dx * r.dz), r.z + (i / r.dx) % r.dz).setBlockData(d, false);
+                    }
+                    if ((w.done & 0xFF) == 0 && System.nanoTime() > end) {
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                this.bridge.getLogger().log(Level.WARNING, "Failed to write region " + w.id, e);
+                this.applying.poll();
+                if (w.reply >= 0) {
+                    this.replyError(w.reply, e);
+                }
+                continue;
+            }
+            final boolean complete = w.done == total;
+            if (complete) {
+                this.applying.poll();
+            }
+            try {
+                this.node.sendBytes(MessageType.REGION_WRITE, ByteBuffer.allocate(12).putInt(w.id).putInt(w.done).putInt(total).array(), false);
+                if (complete && w.reply >= 0) {
+                    this.node.sendReplySignal(w.reply);
+                }
+            } catch (IOException e) {
+                this.bridge.getLogger().log(Level.SEVERE, "Failed to send progress of region " + w.id, e);
+            }
+            if (System.nanoTime() > end) {
+                return;
+            }
+        }
+    }
+
+    private void replyError(short reply, Exception e) {
+        try {
+            this.node.sendReplyError(reply, e);
+        } catch (IOException e1) {
+            this.bridge.getLogger().log(Level.SEVERE, "Failed to send reply (" + String.valueOf(reply) + ")", e1);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Key-value storage for node.js plugins.
+ *
+ * Each plugin namespace is stored in an append-only log with an in-memory index of where each value is located.
+ * A log is only read when its namespace is first used. Writes are synced to disk in batches and logs which are
+ * mostly made up of overwritten values are compacted periodically.
+ *
+ * A log record is `[u16 key length][i32 value length, -1 if deleted][key][value]`.
+ *
+ * All file access happens on a single thread owned by the service.
+ */
+public class StorageService {
+    private static final int HEADER = 6;
+    private static final long COMPACT_MIN_GARBAGE = 1 << 20;
+
+    private static final class Log {
+        final File file;
+        final FileChannel channel;
+        /** key to `[value position, value length]` */
+        final TreeMap<String, long[]> index = new TreeMap<String, long[]>();
+        long end = 0;
+        long garbage = 0;
+        boolean dirty = false;
+
+        Log(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    private final JavaBridge bridge;
+    private final File directory;
+    private final ScheduledThreadPoolExecutor executor;
+    private final HashMap<String, Log> logs = new HashMap<String, Log>();
+
+    /**
+     * @param directory where the log files are stored
+     * @param syncInterval milliseconds between syncing writes to disk
+     */
+    public StorageService(JavaBridge bridge, File directory, long syncInterval) {
+        this.bridge = bridge;
+        this.directory = directory;
+        this.executor = new ScheduledThreadPoolExecutor(1, (r) -> {
+            Thread t = new Thread(r, "NodeSpigotBridge-Storage");
+            t.setDaemon(true);
+            return t;
+        });
+        this.executor.scheduleWithFixedDelay(this::maintain, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static String fileName(String namespace) {
+        final StringBuilder sb = new StringBuilder("storage.");
+        for (int i = 0; i < namespace.length(); i++) {
+            char c = namespace.charAt(i);
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                sb.append(c);
+            } else {
+                sb.append('-').append(Integer.toHexString(c));
+            }
+        }
+        return sb.append(".log").toString();
+    }
+
+    /**
+     * Handle a message of type `STORAGE_GET`, `STORAGE_SET` or `STORAGE_SCAN`.
+     *
+     * Every payload starts with `[u8 namespace length][namespace]`, followed by:
+     * - `STORAGE_GET`: `[key]`, replies with the value or a signal if there is none
+     * - `STORAGE_SET`: any number of `[u16 key length][key][i32 value length, -1 to delete][value]`
+     * - `STORAGE_SCAN`: `[u16 prefix length][prefix][start after key]`, replies with `[u16 key length][key]` for keys in order
+     */
+    public void handle(final NodeJs node, final InputMessage m) {
+        this.executor.execute(() -> {
+            try {
+                final byte[] b = m.binaryValue;
+                final int nsLen = b[0] & 0xFF;
+                final Log log = this.open(new String(b, 1, nsLen, StandardCharsets.UTF_8));
+                int off = 1 + nsLen;
+                if (m.type == MessageType.STORAGE_GET) {
+                    final byte[] v = this.get(log, new String(b, off, b.length - off, StandardCharsets.UTF_8));
+                    if (m.reply != null) {
+                        if (v == null) {
+                            node.sendReplySignal(m.reply);
+                        } else {
+                            node.sendReplyBytes(m.reply, v);
+                        }
+                    }
+                } else if (m.type == MessageType.STORAGE_SET) {
+                    while (off < b.length) {
+                        final int kLen = Encodings.leShort(b, off) & 0xFFFF;
+                        final int vLen = Encodings.leInt(b, off + 2);
+                        final String key = new String(b, off + HEADER, kLen, StandardCharsets.UTF_8);
+                        this.set(log, key, b, off, HEADER + kLen + Math.max(vLen, 0), vLen);
+                        off += HEADER + kLen + Math.max(vLen, 0);
+                    }
+                    if (m.reply != null) {
+                        node.sendReplySignal(m.reply);
+                    }
+                } else if (m.type == MessageType.STORAGE_SCAN && m.reply != null) {
+                    final int pLen = Encodings.leShort(b, off) & 0xFFFF;
+                    final String prefix = new String(b, off + 2, pLen, StandardCharsets.UTF_8);
+                    off += 2 + pLen;
+                    final String after = new String(b, off, b.length - off, StandardCharsets.UTF_8);
+                    node.sendReplyBytes(m.reply, this.scan(log, prefix, after));
+                }
+            } catch (Exception e) {
+                this.bridge.getLogger().log(Level.WARNING, "Storage request failed: " + String.valueOf(m.type), e);
+                if (m.reply != null) {
+                    try {
+                        node.sendReplyError(m.reply, e);
+                    } catch (IOException e1) {
+                        this.bridge.getLogger().log(Level.SEVERE, "Failed to send reply (" + String.valueOf(m.reply) + ") to: " + String.valueOf(m.type), e1);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Open the log of a namespace, reading its keys if it has not been opened before.
+     */
+    private Log open(String namespace) throws IOException {
+        Log log = this.logs.get(namespace);
+        if (log != null) {
+            return log;
+        }
+        if (!this.directory.isDirectory()) {
+            this.directory.mkdirs();
+        }
+        final File file = new File(this.directory, fileName(namespace));
+        log = new Log(file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        final long size = log.channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long pos = 0;
+        while (pos + HEADER <= size) {
+            header.clear();
+            log.channel.read(header, pos);
+            final int kLen = header.getShort(0) & 0xFFFF;
+            final int vLen = header.getInt(2);
+            final long next = pos + HEADER + kLen + Math.max(vLen, 0);
+            if (next > size) {
+                break;
+            }
+            final ByteBuffer k = ByteBuffer.allocate(kLen);
+            log.channel.read(k, pos + HEADER);
+            this.index(log, new String(k.array(), StandardCharsets.UTF_8), pos + HEADER + kLen, vLen, next - pos);
+            pos = next;
+        }
+        if (pos != size) {
+            // a record was only partially written
+            this.bridge.getLogger().warning("Truncating incomplete record at the end of " + file.getName());
+            log.channel.truncate(pos);
+        }
+        log.end = pos;
+        this.logs.put(namespace, log);
+        return log;
+    }
+
+    private void index(Log log, String key, long position, int length, long recordLength) {
+        final long[] prev = length < 0 ? log.index.remove(key) : log.index.put(key, new long[] { position, length });
+        if (prev != null) {
+            log.garbage += HEADER + key.getBytes(StandardCharsets.UTF_8).length + prev[1];
+        }
+        if (length < 0) {
+            log.garbage += recordLength;
+        }
+    }
+
+    private byte[] get(Log log, String key) throws IOException {
+        final long[] e = log.index.get(key);
+        if (e == null) {
+            return null;
+        }
+        final ByteBuffer v = ByteBuffer.allocate((int) e[1]);
+        log.channel.read(v, e[0]);
+        return v.array();
+    }
+
+    /**
+     * Append a record, which is already encoded in `data`, to the log.
+     */
+    private void set(Log log, String key, byte[] data, int off, int len, int vLen) throws IOException {
+        if (vLen < 0 && !log.index.containsKey(key)) {
+            return;
+        }
+        final long pos = log.end;
+        log.channel.write(ByteBuffer.wrap(data, off, len), pos);
+        log.end += len;
+        log.dirty = true;
+        this.index(log, key, pos + len - Math.max(vLen, 0), vLen, len);
+    }
+
+    private byte[] scan(Log log, String prefix, String after) {
+        final ByteBuffer r = ByteBuffer.allocate(0x7FFF);
+        final boolean fromPrefix = after.isEmpty() || after.compareTo(prefix) < 0;
+        for (String k : log.index.tailMap(fromPrefix ? prefix : after, fromPrefix).keySet()) {
+            if (!k.startsWith(prefix)) {
+                break;
+            }
+            final byte[] kb = k.getBytes(StandardCharsets.UTF_8);
+            if (r.remaining() < 2 + kb.length) {
+                break;
+            }
+            r.putShort((short) kb.length).put(kb);
+        }
+        final byte[] ret = new byte[r.position()];
+        r.flip();
+        r.get(ret);
+        return ret;
+    }
+
+    /**
+     * Sync written data and compact logs with a lot of overwritten data.
+     */
+    private void maintain() {
+        for (Map.Entry<String, Log> e : this.logs.entrySet()) {
+            final Log log = e.getValue();
+            try {
+                if (log.garbage > COMPACT_MIN_GARBAGE && log.garbage * 2 > log.end) {
+                    e.setValue(this.compact(log));
+                } else if (log.dirty) {
+                    log.dirty = false;
+                    log.channel.force(false);
+                }
+            } catch (IOException ex) {
+                this.bridge.getLogger().log(Level.SEVERE, "Failed to maintain storage " + log.file.getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Write all live values to a new log which replaces the old one.
+     */
+    private Log compact(Log log) throws IOException {
+        final File tmp = new File(log.file.getPath() + ".tmp");
+        final FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final Log c = new Log(log.file, ch);
+        for (Map.Entry<String, long[]> e : log.index.entrySet()) {
+            final byte[] kb = e.getKey().getBytes(StandardCharsets.UTF_8);
+            final int vLen = (int) e.getValue()[1];
+            final ByteBuffer rec = ByteBuffer.allocate(HEADER + kb.length + vLen);
+            rec.putShort((short) kb.length).putInt(vLen).put(kb);
+            log.channel.read(rec, e.getValue()[0]);
+            rec.flip();
+            ch.write(rec, c.end);
+            c.index.put(e.getKey(), new long[] { c.end + HEADER + kb.length, vLen });
+            c.end += HEADER + kb.length + vLen;
+        }
+        ch.force(false);
+        log.channel.force(false);
+        log.channel.close();
+        Files.move(tmp.toPath(), log.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return c;
+    }
+
+    /**
+     * Sync and close all logs. Pending requests are completed first.
+     */
+    public void close() {
+        this.executor.execute(() -> {
+            for (Log log : this.logs.values()) {
+                try {
+                    log.channel.force(false);
+                    log.channel.close();
+                } catch (IOException e) {
+                    this.bridge.getLogger().log(Level.SEVERE, "Failed to close storage " + log.file.getName(), e);
+                }
+            }
+            this.logs.clear();
+        });
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of how long the main thread has been blocked waiting for node.js replies.
+ *
+ * Run once per tick to start a new measuring period.
+ */
+public class SyncWatchdog implements Runnable {
+    /**
+     * Accumulated waiting statistics for a single command.
+     */
+    public static final class Stats {
+        public long calls = 0;
+        public long timeouts = 0;
+        public long waitNanos = 0;
+        public long maxWaitNanos = 0;
+        public long overBudgetTicks = 0;
+        /** calls which were not waited for since the budget of the tick had been spent */
+        public long skipped = 0;
+    }
+
+    private final JavaBridge bridge;
+    private final long tickBudgetNanos;
+    private final int demoteAfter;
+
+    private long tickNanos = 0;
+    private final HashMap<String, Long> tickWaits = new HashMap<String, Long>();
+    private final HashMap<String, Stats> stats = new HashMap<String, Stats>();
+
+    /**
+     * @param tickBudget milliseconds the main thread may wait for node.js each tick
+     * @param demoteAfter number of timeouts or over budget ticks after which a command should be demoted to async, or 0 to never demote
+     */
+    public SyncWatchdog(JavaBridge bridge, long tickBudget, int demoteAfter) {
+        this.bridge = bridge;
+        this.tickBudgetNanos = tickBudget * 1000000L;
+        this.demoteAfter = demoteAfter;
+    }
+
+    /**
+     * Nanoseconds of the budget which remain for the current tick.
+     */
+    public synchronized long remainingNanos() {
+        return Math.max(0, this.tickBudgetNanos - this.tickNanos);
+    }
+
+    /**
+     * Record a call which was not waited for because the budget of the tick had been spent.
+     * This is not held against the command.
+     */
+    public synchronized void skipped(String command) {
+        this.stats(command).skipped++;
+    }
+
+    private Stats stats(String command) {
+        Stats s = this.stats.get(command);
+        if (s == null) {
+            this.stats.put(command, s = new Stats());
+        }
+        return s;
+    }
+
+    /**
+     * Record time spent waiting on the main thread.
+     * @return `true` if the command should be demoted to async
+     */
+    public synchronized boolean record(String command, long nanos, boolean timedOut) {
+        this.tickNanos += nanos;
+        this.tickWaits.merge(command, nanos, Long::sum);
+        final Stats s = this.stats(command);
+        s.calls++;
+        s.waitNanos += nanos;
+        if (nanos > s.maxWaitNanos) {
+            s.maxWaitNanos = nanos;
+        }
+        if (timedOut) {
+            s.timeouts++;
+        }
+        return this.demoteAfter > 0 && s.timeouts + s.overBudgetTicks >= this.demoteAfter;
+    }
+
+    /**
+     * A copy of the statistics per command.
+     */
+    public synchronized Map<String, Stats> getStats() {
+        final HashMap<String, Stats> r = new HashMap<String, Stats>();
+        for (Map.Entry<String, Stats> e : this.stats.entrySet()) {
+            final Stats s = e.getValue();
+            final Stats c = new Stats();
+            c.calls = s.calls;
+            c.timeouts = s.timeouts;
+            c.waitNanos = s.waitNanos;
+            c.maxWaitNanos = s.maxWaitNanos;
+            c.overBudgetTicks = s.overBudgetTicks;
+            c.skipped = s.skipped;
+            r.put(e.getKey(), c);
+        }
+        return r;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (this.tickNanos > this.tickBudgetNanos) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("Main thread waited ").append(this.tickNanos / 1000000L).append("ms on node.js during the last tick:");
+            for (Map.Entry<String, Long> e : this.tickWaits.entrySet()) {
+                sb.append(' ').append(e.getKey()).append('=').append(e.getValue() / 1000000L).append("ms");
+                this.stats.get(e.getKey()).overBudgetTicks++;
+            }
+            this.bridge.getLogger().warning(sb.toString());
+        }
+        this.tickNanos = 0;
+        this.tickWaits.clear();
+    }
+}
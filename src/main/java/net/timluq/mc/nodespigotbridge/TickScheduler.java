@@ -0,0 +1,263 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * Schedules node.js tasks by server tick.
+ *
+ * Tasks are kept in a hierarchical timer wheel of `LEVELS` levels with `SLOTS` slots each,
+ * so scheduling, cancelling and advancing a tick do not depend on the number of tasks.
+ * Each tick the ids of all due tasks are sent to node.js as a single `TICK` message.
+ * A task may also carry messages which are handled when it is due,
+ * accounted and limited as messages of the plugin which scheduled the task.
+ *
+ * Run once per tick on the main thread.
+ */
+public class TickScheduler implements Runnable {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    private static final short OP_SCHEDULE = 0;
+    private static final short OP_CANCEL = 1;
+
+    /** Maximum number of task ids in a single `TICK` message */
+    private static final int MAX_IDS = 0x7FFF / 4;
+
+    private static final class Task {
+        final int id;
+        /** the node.js plugin which scheduled the task */
+        final short plugin;
+        final long period;
+        final InputMessage[] ops;
+        long due;
+        boolean cancelled = false;
+
+        Task(int id, short plugin, long due, long period, InputMessage[] ops) {
+            this.id = id;
+            this.plugin = plugin;
+            this.due = due;
+            this.period = period;
+            this.ops = ops;
+        }
+    }
+
+    private static final class Incoming {
+        final InputMessage message;
+        final int generation;
+
+        Incoming(InputMessage message, int generation) {
+            this.message = message;
+            this.generation = generation;
+        }
+    }
+
+    private final JavaBridge bridge;
+    private final NodeJs node;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final ArrayList<Task>[][] wheel = new ArrayList[LEVELS][SLOTS];
+    private final HashMap<Integer, Task> tasks = new HashMap<Integer, Task>();
+    private long tick = 0;
+
+    /** `SCHEDULE` messages received since the last tick, with the generation of the process which sent them */
+    private final ConcurrentLinkedQueue<Incoming> incoming = new ConcurrentLinkedQueue<Incoming>();
+    private volatile boolean clear = false;
+    /** incremented each time the node.js process is replaced */
+    private volatile int generation = 0;
+
+    public TickScheduler(JavaBridge bridge, NodeJs node) {
+        this.bridge = bridge;
+        this.node = node;
+        for (int l = 0; l < LEVELS; l++) {
+            for (int s = 0; s < SLOTS; s++) {
+                this.wheel[l][s] = new ArrayList<Task>();
+            }
+        }
+        // tasks belong to the process which scheduled them
+        node.addRestartListener(() -> {
+            this.generation++;
+            this.clear = true;
+        });
+    }
+
+    /**
+     * Handle a message of type `SCHEDULE`. May be called from any thread.
+     *
+     * The short value is the operation:
+     * - `0`: schedule `[u32 id][u32 delay][u32 period, 0 if not repeating][u16 plugin id][messages]`,
+     *   where messages are encoded as on the wire but may not expect a reply
+     * - `1`: cancel `[u32 id]...`
+     */
+    public void handle(InputMessage m) {
+        this.incoming.add(new Incoming(m, this.generation));
+    }
+
+    private void insert(Task t) {
+        final long delta = t.due - this.tick;
+        for (int l = 0; l < LEVELS; l++) {
+            if (delta < 1L << (BITS * (l + 1))) {
+                this.wheel[l][(int) (t.due >> (BITS * l)) & MASK].add(t);
+                return;
+            }
+        }
+        // further away than the wheel can hold, the task is placed again when this slot cascades
+        this.wheel[LEVELS - 1][(int) ((this.tick >> (BITS * (LEVELS - 1))) - 1) & MASK].add(t);
+    }
+
+    private void receive(InputMessage m) {
+        final byte[] b = m.binaryValue;
+        if (m.shortValue != null && m.shortValue == OP_CANCEL) {
+            for (int off = 0; off + 4 <= b.length; off += 4) {
+                final Task t = this.tasks.remove(Encodings.leInt(b, off));
+                if (t != null) {
+                    t.cancelled = true;
+                }
+            }
+        } else if (m.shortValue != null && m.shortValue == OP_SCHEDULE) {
+            final int id = Encodings.leInt(b, 0);
+            final long delay = Math.max(1, Encodings.leInt(b, 4) & 0xFFFFFFFFL);
+            final long period = Encodings.leInt(b, 8) & 0xFFFFFFFFL;
+            final short plugin = Encodings.leShort(b, 12);
+            final Task t = new Task(id, plugin, this.tick + delay, period, decode(b, 14, plugin));
+            final Task prev = this.tasks.put(id, t);
+            if (prev != null) {
+                prev.cancelled = true;
+            }
+            this.insert(t);
+        }
+    }
+
+    /**
+     * Decode a sequence of messages which are encoded as on the wire, without reply ids.
+     */
+    private static InputMessage[] decode(byte[] b, int off, short plugin) {
+        final ArrayList<InputMessage> ops = new ArrayList<InputMessage>();
+        while (off < b.length) {
+            final int t = b[off++] & 0xFF;
+            if ((t & 0x80) != 0) {
+                throw new IllegalArgumentException("Scheduled messages may not expect a reply");
+            }
+            final InputMessage m = new InputMessage(MessageType.fromInt(t & 0x1F));
+            m.plugin = plugin;
+            if ((t & 0x20) != 0) {
+                m.shortValue = Encodings.leShort(b, off);
+                off += 2;
+            }
+            if ((t & 0x40) != 0) {
+                final int len = Encodings.leShort(b, off) & 0xFFFF;
+                m.binaryValue = new byte[len];
+                System.arraycopy(b, off + 2, m.binaryValue, 0, len);
+                off += 2 + len;
+            }
+            ops.add(m);
+        }
+        return ops.toArray(new InputMessage[ops.size()]);
+    }
+
+    private void cascade(int level) {
+        final ArrayList<Task> slot = this.wheel[level][(int) (this.tick >> (BITS * level)) & MASK];
+        if (slot.isEmpty()) {
+            return;
+        }
+        final Task[] ts = slot.toArray(new Task[slot.size()]);
+        slot.clear();
+        for (Task t : ts) {
+            if (!t.cancelled) {
+                this.insert(t);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        if (this.clear) {
+            this.clear = false;
+            for (Task t : this.tasks.values()) {
+                t.cancelled = true;
+            }
+            this.tasks.clear();
+        }
+        final int gen = this.generation;
+        Incoming in;
+        while ((in = this.incoming.poll()) != null) {
+            if (in.generation != gen) {
+                // sent by a process which has exited, its ids may collide with those of the current process
+                continue;
+            }
+            try {
+                this.receive(in.message);
+            } catch (RuntimeException e) {
+                this.bridge.getLogger().log(Level.WARNING, "Invalid SCHEDULE message", e);
+            }
+        }
+
+        this.tick++;
+        int top = 0;
+        while (top + 1 < LEVELS && (this.tick & ((1L << (BITS * (top + 1))) - 1)) == 0) {
+            top++;
+        }
+        // higher levels first, since their tasks may move into a lower slot which is cascaded this tick
+        for (int l = top; l > 0; l--) {
+            this.cascade(l);
+        }
+        final ArrayList<Task> slot = this.wheel[0][(int) this.tick & MASK];
+        if (slot.isEmpty()) {
+            return;
+        }
+        final Task[] due = slot.toArray(new Task[slot.size()]);
+        slot.clear();
+
+        final byte[] ids = new byte[Math.min(due.length, MAX_IDS) * 4];
+        int n = 0;
+        for (Task t : due) {
+            if (t.cancelled) {
+                continue;
+            }
+            if (t.due > this.tick) {
+                this.insert(t);
+                continue;
+            }
+            if (t.period > 0) {
+                t.due = this.tick + t.period;
+                this.insert(t);
+            } else {
+                this.tasks.remove(t.id);
+            }
+            for (InputMessage op : t.ops) {
+                try {
+                    this.node.dispatchFrom(op);
+                } catch (RuntimeException e) {
+                    this.bridge.getLogger().log(Level.WARNING, "Scheduled " + String.valueOf(op.type) + " of task " + t.id + " failed", e);
+                }
+            }
+            if (n == MAX_IDS) {
+                this.send(ids, n);
+                n = 0;
+            }
+            ids[n * 4] = (byte) (t.id >> 24);
+            ids[n * 4 + 1] = (byte) (t.id >> 16);
+            ids[n * 4 + 2] = (byte) (t.id >> 8);
+            ids[n * 4 + 3] = (byte) t.id;
+            n++;
+        }
+        if (n != 0) {
+            this.send(ids, n);
+        }
+    }
+
+    private void send(byte[] ids, int n) {
+        final byte[] data = new byte[n * 4];
+        System.arraycopy(ids, 0, data, 0, data.length);
+        try {
+            this.node.sendBytes(MessageType.TICK, data, false);
+        } catch (IOException e) {
+            this.bridge.getLogger().log(Level.SEVERE, "Failed to send TICK", e);
+        }
+    }
+}
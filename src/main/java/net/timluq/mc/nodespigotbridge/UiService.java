@@ -0,0 +1,436 @@
+package net.timluq.mc.nodespigotbridge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import org.bukkit.boss.BarColor;
+import org.bukkit.boss.BarStyle;
+import org.bukkit.boss.BossBar;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.scoreboard.DisplaySlot;
+import org.bukkit.scoreboard.Objective;
+import org.bukkit.scoreboard.Scoreboard;
+import org.bukkit.scoreboard.Team;
+
+import net.md_5.bungee.api.ChatMessageType;
+import net.md_5.bungee.api.chat.TextComponent;
+
+/**
+ * Per player sidebars, action bars and boss bars which are updated by deltas from node.js.
+ *
+ * A `UI` message from node.js is a sequence of `[16 bytes uuid][u16 length][updates]` where each update is `[u8 op]` and:
+ * - `0` sidebar title: `[u16 length][text]`, an empty title hides the sidebar
+ * - `1` sidebar line: `[varint line id][i32 score][u16 length][text]`
+ * - `2` remove sidebar line: `[varint line id]`
+ * - `3` action bar: `[u16 length][text]`, which is kept visible until it is set to an empty text
+ * - `4` boss bar: `[varint bar id][u8 fields]` followed by the fields which are set,
+ *   `1` title `[u16 length][text]`, `2` progress `[f32]`, `4` color `[u8]` and `8` style `[u8]`
+ * - `5` remove boss bar: `[varint bar id]`
+ *
+ * Updates received during a tick are merged per player and compared to what the player was last shown,
+ * so only changed lines, texts and values are sent to the client.
+ * When the state of a player is dropped, on quit, a `UI` message of `[16 bytes uuid]` is sent to node.js.
+ *
+ * Run once per tick on the main thread.
+ */
+public class UiService implements Runnable, Listener {
+    private static final int OP_TITLE = 0;
+    private static final int OP_LINE = 1;
+    private static final int OP_LINE_REMOVE = 2;
+    private static final int OP_ACTION_BAR = 3;
+    private static final int OP_BAR = 4;
+    private static final int OP_BAR_REMOVE = 5;
+
+    private static final int BAR_TITLE = 1;
+    private static final int BAR_PROGRESS = 2;
+    private static final int BAR_COLOR = 4;
+    private static final int BAR_STYLE = 8;
+
+    /** the client fades the action bar out after a few seconds, so it is shown again this often */
+    private static final int ACTION_BAR_REFRESH = 40;
+
+    /** unique invisible entries for the lines of a sidebar, the text is the prefix of a team per entry */
+    private static final int MAX_LINES = 15;
+    private static final String[] ENTRIES = new String[MAX_LINES];
+    static {
+        for (int i = 0; i < MAX_LINES; i++) {
+            ENTRIES[i] = "\u00a7" + Integer.toHexString(i) + "\u00a7r";
+        }
+    }
+
+    private static final class Line {
+        final String text;
+        final int score;
+
+        Line(String text, int score) {
+            this.text = text;
+            this.score = score;
+        }
+    }
+
+    private static final class ShownLine {
+        final int slot;
+        String text = null;
+        int score = 0;
+        boolean scored = false;
+
+        ShownLine(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    private static final class Bar {
+        int fields = 0;
+        String title;
+        float progress;
+        int color;
+        int style;
+
+        void merge(Bar b) {
+            if ((b.fields & BAR_TITLE) != 0) {
+                this.title = b.title;
+            }
+            if ((b.fields & BAR_PROGRESS) != 0) {
+                this.progress = b.progress;
+            }
+            if ((b.fields & BAR_COLOR) != 0) {
+                this.color = b.color;
+            }
+            if ((b.fields & BAR_STYLE) != 0) {
+                this.style = b.style;
+            }
+            this.fields |= b.fields;
+        }
+    }
+
+    /** updates of a player received during the current tick */
+    private static final class Pending {
+        String title = null;
+        final LinkedHashMap<Integer, Line> lines = new LinkedHashMap<Integer, Line>();
+        String actionBar = null;
+        final LinkedHashMap<Integer, Bar> bars = new LinkedHashMap<Integer, Bar>();
+    }
+
+    /** what a player is being shown */
+    private static final class Shown {
+        Scoreboard board = null;
+        Objective objective = null;
+        String title = "";
+        final HashMap<Integer, ShownLine> lines = new HashMap<Integer, ShownLine>();
+        int freeSlots = (1 << MAX_LINES) - 1;
+        String actionBar = "";
+        long actionBarTick = 0;
+        final HashMap<Integer, BossBar> bars = new HashMap<Integer, BossBar>();
+        final HashMap<Integer, Bar> barValues = new HashMap<Integer, Bar>();
+    }
+
+    private final JavaBridge bridge;
+    private final NodeJs node;
+
+    private final ConcurrentLinkedQueue<byte[]> incoming = new ConcurrentLinkedQueue<byte[]>();
+    private final HashMap<UUID, Shown> shown = new HashMap<UUID, Shown>();
+    private volatile boolean clear = false;
+    private long tick = 0;
+
+    public UiService(JavaBridge bridge, NodeJs node) {
+        this.bridge = bridge;
+        this.node = node;
+        // the new process starts without any state to show
+        node.addRestartListener(() -> this.clear = true);
+    }
+
+    /**
+     * Handle a message of type `UI`. May be called from any thread.
+     */
+    public void handle(InputMessage m) {
+        if (m.binaryValue != null) {
+            this.incoming.add(m.binaryValue);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        final int len = in.getShort() & 0xFFFF;
+        final String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+
+    /**
+     * Merge the updates of a message into the pending updates of each player.
+     */
+    private static void decode(byte[] b, HashMap<UUID, Pending> pending) {
+        final ByteBuffer in = ByteBuffer.wrap(b);
+        while (in.remaining() >= 18) {
+            final UUID uuid = new UUID(in.getLong(), in.getLong());
+            final int end = (in.getShort() & 0xFFFF) + in.position();
+            final Pending p = pending.computeIfAbsent(uuid, (u) -> new Pending());
+            while (in.position() < end) {
+                final int op = in.get() & 0xFF;
+                if (op == OP_TITLE) {
+                    p.title = readString(in);
+                } else if (op == OP_LINE) {
+                    final int id = Encodings.readVarInt(in);
+                    final int score = in.getInt();
+                    p.lines.remove(id);
+                    p.lines.put(id, new Line(readString(in), score));
+                } else if (op == OP_LINE_REMOVE) {
+                    final int id = Encodings.readVarInt(in);
+                    p.lines.remove(id);
+                    p.lines.put(id, null);
+                } else if (op == OP_ACTION_BAR) {
+                    p.actionBar = readString(in);
+                } else if (op == OP_BAR) {
+                    final int id = Encodings.readVarInt(in);
+                    final Bar bar = new Bar();
+                    bar.fields = in.get() & 0xFF;
+                    if ((bar.fields & BAR_TITLE) != 0) {
+                        bar.title = readString(in);
+                    }
+                    if ((bar.fields & BAR_PROGRESS) != 0) {
+                        bar.progress = Math.max(0f, Math.min(1f, in.getFloat()));
+                    }
+                    if ((bar.fields & BAR_COLOR) != 0) {
+                        bar.color = in.get() & 0xFF;
+                    }
+                    if ((bar.fields & BAR_STYLE) != 0) {
+                        bar.style = in.get() & 0xFF;
+                    }
+                    final Bar prev = p.bars.get(id);
+                    if (prev != null) {
+                        prev.merge(bar);
+                    } else {
+                        p.bars.remove(id);
+                        p.bars.put(id, bar);
+                    }
+                } else if (op == OP_BAR_REMOVE) {
+                    final int id = Encodings.readVarInt(in);
+                    p.bars.remove(id);
+                    p.bars.put(id, null);
+                } else {
+                    throw new IllegalArgumentException("Unknown UI update " + op);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        this.tick++;
+        if (this.clear) {
+            this.clear = false;
+            for (UUID uuid : this.shown.keySet().toArray(new UUID[0])) {
+                final Player p = this.bridge.getServer().getPlayer(uuid);
+                this.release(this.shown.remove(uuid), p);
+            }
+        }
+
+        final HashMap<UUID, Pending> pending = new HashMap<UUID, Pending>();
+        byte[] b;
+        while ((b = this.incoming.poll()) != null) {
+            try {
+                decode(b, pending);
+            } catch (RuntimeException e) {
+                this.bridge.getLogger().log(Level.WARNING, "Invalid UI message", e);
+            }
+        }
+        for (Map.Entry<UUID, Pending> e : pending.entrySet()) {
+            final Player p = this.bridge.getServer().getPlayer(e.getKey());
+            if (p == null) {
+                // node.js may believe these updates are shown
+                this.sendReset(e.getKey());
+                continue;
+            }
+            Shown s = this.shown.get(e.getKey());
+            if (s == null) {
+                this.shown.put(e.getKey(), s = new Shown());
+            }
+            try {
+                this.apply(p, s, e.getValue());
+            } catch (RuntimeException ex) {
+                this.bridge.getLogger().log(Level.WARNING, "Failed to update UI of " + p.getName(), ex);
+            }
+        }
+
+        for (Map.Entry<UUID, Shown> e : this.shown.entrySet()) {
+            final Shown s = e.getValue();
+            if (!s.actionBar.isEmpty() && this.tick - s.actionBarTick >= ACTION_BAR_REFRESH) {
+                final Player p = this.bridge.getServer().getPlayer(e.getKey());
+                if (p != null) {
+                    this.sendActionBar(p, s, s.actionBar);
+                }
+            }
+        }
+    }
+
+    private void sendActionBar(Player p, Shown s, String text) {
+        p.spigot().sendMessage(ChatMessageType.ACTION_BAR, TextComponent.fromLegacyText(text));
+        s.actionBarTick = this.tick;
+    }
+
+    private void apply(Player p, Shown s, Pending u) {
+        if (u.title != null && !u.title.equals(s.title)) {
+            if (u.title.isEmpty()) {
+                if (s.board != null) {
+                    s.board.clearSlot(DisplaySlot.SIDEBAR);
+                }
+            } else {
+                this.sidebar(p, s).setDisplayName(u.title);
+                if (s.objective.getDisplaySlot() != DisplaySlot.SIDEBAR) {
+                    s.objective.setDisplaySlot(DisplaySlot.SIDEBAR);
+                }
+            }
+            s.title = u.title;
+        }
+        // lines are removed first, so their slots can be taken by lines added in the same tick
+        for (Map.Entry<Integer, Line> e : u.lines.entrySet()) {
+            final ShownLine sl = e.getValue() == null ? s.lines.remove(e.getKey()) : null;
+            if (sl != null) {
+                s.board.resetScores(ENTRIES[sl.slot]);
+                s.board.getTeam("nsb" + sl.slot).setPrefix("");
+                s.freeSlots |= 1 << sl.slot;
+            }
+        }
+        for (Map.Entry<Integer, Line> e : u.lines.entrySet()) {
+            final Line l = e.getValue();
+            if (l == null) {
+                continue;
+            }
+            ShownLine sl = s.lines.get(e.getKey());
+            if (sl == null) {
+                if (s.freeSlots == 0) {
+                    this.bridge.getLogger().warning("Sidebar of " + p.getName() + " has no room for more than " + MAX_LINES + " lines");
+                    continue;
+                }
+                final Objective o = this.sidebar(p, s);
+                final int slot = Integer.numberOfTrailingZeros(s.freeSlots);
+                s.freeSlots &= ~(1 << slot);
+                s.lines.put(e.getKey(), sl = new ShownLine(slot));
+                Team t = s.board.getTeam("nsb" + slot);
+                if (t == null) {
+                    t = s.board.registerNewTeam("nsb" + slot);
+                    t.addEntry(ENTRIES[slot]);
+                }
+                o.getScore(ENTRIES[slot]);
+            }
+            if (!l.text.equals(sl.text)) {
+                s.board.getTeam("nsb" + sl.slot).setPrefix(l.text);
+                sl.text = l.text;
+            }
+            if (!sl.scored || l.score != sl.score) {
+                s.objective.getScore(ENTRIES[sl.slot]).setScore(l.score);
+                sl.score = l.score;
+                sl.scored = true;
+            }
+        }
+        if (u.actionBar != null && !u.actionBar.equals(s.actionBar)) {
+            this.sendActionBar(p, s, u.actionBar);
+            s.actionBar = u.actionBar;
+        }
+        for (Map.Entry<Integer, Bar> e : u.bars.entrySet()) {
+            final Bar v = e.getValue();
+            BossBar bar = s.bars.get(e.getKey());
+            if (v == null) {
+                if (bar != null) {
+                    bar.removeAll();
+                    s.bars.remove(e.getKey());
+                    s.barValues.remove(e.getKey());
+                }
+                continue;
+            }
+            Bar prev = s.barValues.get(e.getKey());
+            if (bar == null) {
+                prev = new Bar();
+                prev.merge(v);
+                bar = this.bridge.getServer().createBossBar(prev.title == null ? "" : prev.title,
+                    color(prev.color), style(prev.style));
+                bar.setProgress(prev.progress);
+                bar.addPlayer(p);
+                s.bars.put(e.getKey(), bar);
+                s.barValues.put(e.getKey(), prev);
+                continue;
+            }
+            if ((v.fields & BAR_TITLE) != 0 && !v.title.equals(prev.title)) {
+                bar.setTitle(v.title);
+            }
+            if ((v.fields & BAR_PROGRESS) != 0 && v.progress != prev.progress) {
+                bar.setProgress(v.progress);
+            }
+            if ((v.fields & BAR_COLOR) != 0 && v.color != prev.color) {
+                bar.setColor(color(v.color));
+            }
+            if ((v.fields & BAR_STYLE) != 0 && v.style != prev.style) {
+                bar.setStyle(style(v.style));
+            }
+            prev.merge(v);
+        }
+    }
+
+    private static BarColor color(int i) {
+        final BarColor[] values = BarColor.values();
+        return values[i < values.length ? i : 0];
+    }
+
+    private static BarStyle style(int i) {
+        final BarStyle[] values = BarStyle.values();
+        return values[i < values.length ? i : 0];
+    }
+
+    /**
+     * Get the sidebar objective of a player, creating a scoreboard for the player if needed.
+     */
+    private Objective sidebar(Player p, Shown s) {
+        if (s.board == null) {
+            s.board = this.bridge.getServer().getScoreboardManager().getNewScoreboard();
+            s.objective = s.board.registerNewObjective("nsb", "dummy", s.title);
+            p.setScoreboard(s.board);
+        }
+        return s.objective;
+    }
+
+    /**
+     * Remove everything that is shown to a player.
+     */
+    private void release(Shown s, Player p) {
+        for (BossBar bar : s.bars.values()) {
+            bar.removeAll();
+        }
+        if (p != null) {
+            if (s.board != null && p.getScoreboard() == s.board) {
+                p.setScoreboard(this.bridge.getServer().getScoreboardManager().getMainScoreboard());
+            }
+            if (!s.actionBar.isEmpty()) {
+                p.spigot().sendMessage(ChatMessageType.ACTION_BAR, new TextComponent(""));
+            }
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        final UUID uuid = event.getPlayer().getUniqueId();
+        final Shown s = this.shown.remove(uuid);
+        if (s == null) {
+            return;
+        }
+        this.release(s, null);
+        this.sendReset(uuid);
+    }
+
+    private void sendReset(UUID uuid) {
+        try {
+            this.node.sendBytes(MessageType.UI, Encodings.fromUUID(uuid), false);
+        } catch (IOException e) {
+            this.bridge.getLogger().log(Level.SEVERE, "Failed to send UI reset of " + uuid, e);
+        }
+    }
+}
@@ -7,7 +7,9 @@ import net.timluq.mc.nodespigotbridge.Encodings;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class LibraryTest {
     @Test public void testEscapeString() throws IOException {
@@ -17,4 +19,35 @@ public class LibraryTest {
         assertEquals("EscapeString.escape of a newline should be correctly escaped", "\\n", Encodings.escapeString(new StringBuilder(), "\n").toString());
         assertEquals("EscapeString.escape of a string containing newline should be correctly escaped", "test\\n123", Encodings.escapeString(new StringBuilder(), "test\n123").toString());
     }
+
+    @Test public void testLeInt() {
+        byte[] b = new byte[] { 0x01, 0x02, 0x03, 0x04, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+        assertEquals("Encodings.leInt should read four bytes in order", 0x01020304, Encodings.leInt(b, 0));
+        assertEquals("Encodings.leInt should read negative values", -1, Encodings.leInt(b, 4));
+    }
+
+    @Test public void testPackBits() {
+        assertEquals("Encodings.paletteBits of a single entry palette should be 1", 1, Encodings.paletteBits(1));
+        assertEquals("Encodings.paletteBits of a 16 entry palette should be 4", 4, Encodings.paletteBits(16));
+        assertEquals("Encodings.paletteBits of a 17 entry palette should be 5", 5, Encodings.paletteBits(17));
+        int[] values = new int[] { 0, 5, 31, 17, 1, 30, 2 };
+        byte[] packed = Encodings.packBits(values, 5);
+        assertEquals("Encodings.packBits should use whole bytes for the bits", 5, packed.length);
+        assertArrayEquals("Encodings.unpackBits should reverse Encodings.packBits", values, Encodings.unpackBits(packed, 0, 5, values.length));
+    }
+
+    @Test public void testVarInt() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Encodings.writeVarInt(out, 0);
+        Encodings.writeVarInt(out, 127);
+        Encodings.writeVarInt(out, 128);
+        Encodings.writeVarInt(out, 300000);
+        byte[] b = out.toByteArray();
+        assertEquals("Encodings.writeVarInt should use 1, 1, 2 and 3 bytes", 7, b.length);
+        ByteBuffer in = ByteBuffer.wrap(b);
+        assertEquals("Encodings.readVarInt should read 0", 0, Encodings.readVarInt(in));
+        assertEquals("Encodings.readVarInt should read 127", 127, Encodings.readVarInt(in));
+        assertEquals("Encodings.readVarInt should read 128", 128, Encodings.readVarInt(in));
+        assertEquals("Encodings.readVarInt should read 300000", 300000, Encodings.readVarInt(in));
+    }
 }